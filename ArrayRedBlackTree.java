@@ -0,0 +1,563 @@
+import java.util.Arrays;
+import java.util.function.BiFunction;
+
+/**
+ * A red black tree that keeps its nodes in parallel arrays instead of one
+ * object per node. Node i is left[i], right[i], subtreeSize[i], keys[i],
+ * values[i] and bit i of red. Index 0 is the empty (black, size 0) node, so
+ * children never need null checks. Deleted slots go on a free list threaded
+ * through left[] and get reused by later inserts.
+ *
+ * Compared to RedBlackTree this saves the per-node object header and child
+ * pointers (about 40 bytes a node down to about 20 including the key and
+ * value references), keeps the links the descent reads next to each other,
+ * and leaves the GC a handful of arrays to scan instead of millions of nodes.
+ */
+public class ArrayRedBlackTree<K extends Comparable<K>,V> {
+
+  // a red black tree with n < 2^31 nodes is at most 2*lg(n+1) < 64 levels tall
+  private static final int MAX_HEIGHT = 64;
+  private static final int NIL = 0; // the empty node
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private int root = NIL; // our root node
+  private int[] left;
+  private int[] right;
+  private int[] subtreeSize;
+  private long[] red; // one color bit per node, 1 = red
+  private Object[] keys;
+  private Object[] values;
+  private int used = 1; // slots handed out so far, counting NIL
+  private int free = NIL; // head of the free list, linked through left[]
+
+  // the nodes from the root down to where the last findPath stopped
+  private final int[] path = new int[MAX_HEIGHT];
+  private int pathLength; // number of nodes on path
+  private int pathCompare; // how the key compared to the last node on path
+
+
+  /**
+   * Creates an empty tree
+   */
+  public ArrayRedBlackTree() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates an empty tree with room for the given number of entries before
+   * it has to grow its arrays
+   *
+   * @param capacity number of entries to make room for
+   */
+  public ArrayRedBlackTree(int capacity) {
+    int slots = Math.max(capacity, 1) + 1; // plus NIL
+    left = new int[slots];
+    right = new int[slots];
+    subtreeSize = new int[slots];
+    red = new long[(slots + 63) >>> 6];
+    keys = new Object[slots];
+    values = new Object[slots];
+  }
+
+  /**
+   * Inserts a new key value pair into the tree, replacing the old value if
+   * the key was already there.
+   *
+   * @param key given key to add
+   * @param value given value to add
+   */
+  public void put(K key, V value) {
+    int node = findPath(key);
+    if(node != NIL) values[node] = value;
+    else addBelowPath(newNode(key, value));
+  }
+
+  /**
+   * If the key isn't present, adds it with the given value. Otherwise replaces
+   * its value with remappingFunction(oldValue, value), or removes the key if
+   * that returns null.
+   *
+   * @param key given key to update
+   * @param value value to add, or to combine with the old one
+   * @param remappingFunction combines the old value with the given one
+   * @return the new value, or null if the key was removed
+   */
+  public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    int node = findPath(key);
+    if(node == NIL) {
+      addBelowPath(newNode(key, value));
+      return value;
+    }
+
+    V newValue = remappingFunction.apply(value(node), value);
+    if(newValue != null) values[node] = newValue;
+    else delete(key);
+    return newValue;
+  }
+
+  /**
+   * Returns the corresponding value to the given key or null if key
+   * is not present.
+   *
+   * @param key
+   * @return
+   */
+  public V get(K key) {
+    int node = find(key);
+    return node == NIL ? null : value(node);
+  }
+
+  /**
+   * Returns true if the key is present.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(K key) {
+    return find(key) != NIL;
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value.
+   * Returns null if the key wasn't present.
+   *
+   * @param key
+   * @return
+   */
+  public V delete(K key) {
+    if(root == NIL || find(key) == NIL) return null;
+    // make the root red to take redness with us, unless a child already carries it
+    if(!isRed(left[root]) && !isRed(right[root])) setRed(root, true);
+
+    V deletedValue;
+    int currentNode = root;
+    pathLength = 0;
+
+    while(true) {
+      // going left - make sure the left child has redness
+      if(key.compareTo(key(currentNode)) < 0) {
+        if(!isRed(left[currentNode]) && !isRed(left[left[currentNode]])) currentNode = moveRedLeft(currentNode);
+        path[pathLength++] = currentNode;
+        currentNode = left[currentNode];
+        continue;
+      }
+
+      // going right or found - move redness right if it exists in left
+      if(isRed(left[currentNode])) currentNode = rotateAt(pathLength, currentNode, rotateRight(currentNode));
+
+      // found it with no children - just unhook it
+      if(right[currentNode] == NIL && key.compareTo(key(currentNode)) == 0) {
+        deletedValue = value(currentNode);
+        replaceChild(pathLength, currentNode, NIL);
+        freeNode(currentNode);
+        break;
+      }
+
+      if(!isRed(right[currentNode]) && !isRed(left[right[currentNode]])) currentNode = moveRedRight(currentNode);
+
+      // found it - swap in its successor and delete that instead
+      if(key.compareTo(key(currentNode)) == 0) {
+        deletedValue = value(currentNode);
+        path[pathLength++] = currentNode;
+        int min = deleteMinBelowPath(right[currentNode]);
+        keys[currentNode] = keys[min];
+        values[currentNode] = values[min];
+        freeNode(min);
+        break;
+      }
+
+      path[pathLength++] = currentNode;
+      currentNode = right[currentNode];
+    }
+
+    fixPathAfterDelete();
+    return deletedValue;
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return root == NIL;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   *
+   * @return
+   */
+  public int size() {return subtreeSize[root];}
+
+  /**
+   * Returns the key that is less than all the others.
+   * Or null if none.
+   *
+   * @return
+   */
+  public K findFirstKey() {
+    if(root == NIL) return null;
+    int node = root;
+    while(left[node] != NIL) node = left[node];
+    return key(node);
+  }
+
+  /**
+   * Returns the key that is greater than all the others.
+   * Or null if none.
+   *
+   * @return
+   */
+  public K findLastKey() {
+    if(root == NIL) return null;
+    int node = root;
+    while(right[node] != NIL) node = right[node];
+    return key(node);
+  }
+
+  /**
+   * Returns the predecessor of the given key, or null
+   * if the key is not present or has no predecssor.
+   *
+   * @param key
+   * @return
+   */
+  public K findPredecessor(K key) {
+    int currentNode = root;
+    int predecessor = NIL; // most recent ancestor from which we traveled right
+
+    while(currentNode != NIL) {
+      int compare = key.compareTo(key(currentNode));
+      if(compare < 0) currentNode = left[currentNode];
+      else if(compare > 0) {
+        predecessor = currentNode;
+        currentNode = right[currentNode];
+      }
+      else {
+        // travel left once, then right as much as possible
+        if(left[currentNode] != NIL) {
+          currentNode = left[currentNode];
+          while(right[currentNode] != NIL) currentNode = right[currentNode];
+          return key(currentNode);
+        }
+        return predecessor != NIL ? key(predecessor) : null;
+      }
+    }
+    return null; // the key doesn't exist
+  }
+
+  /**
+   * Returns the successor of the given key, or null
+   * if the key is not present or has no successor.
+   *
+   * @param key
+   * @return
+   */
+  public K findSuccessor(K key) {
+    int currentNode = root;
+    int successor = NIL; // most recent ancestor from which we traveled left
+
+    while(currentNode != NIL) {
+      int compare = key.compareTo(key(currentNode));
+      if(compare < 0) {
+        successor = currentNode;
+        currentNode = left[currentNode];
+      }
+      else if(compare > 0) currentNode = right[currentNode];
+      else {
+        // travel right once, then left as much as possible
+        if(right[currentNode] != NIL) {
+          currentNode = right[currentNode];
+          while(left[currentNode] != NIL) currentNode = left[currentNode];
+          return key(currentNode);
+        }
+        return successor != NIL ? key(successor) : null;
+      }
+    }
+    return null; // the key doesn't exist
+  }
+
+  /**
+   * Returns the rank of the given key, or -1 if the key is
+   * not present.
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(K key) {
+    int currentNode = root;
+    int rank = 0;
+
+    while(currentNode != NIL) {
+      int compare = key.compareTo(key(currentNode));
+      if(compare < 0) currentNode = left[currentNode];
+      else if(compare > 0) {
+        // going right - count everything on the left plus this node
+        rank += subtreeSize[left[currentNode]] + 1;
+        currentNode = right[currentNode];
+      }
+      else return rank + subtreeSize[left[currentNode]];
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank.
+   *
+   * @param rank
+   * @return
+   */
+  public K select(int rank) {
+    if(rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+
+    int node = root;
+    while(true) {
+      int size = subtreeSize[left[node]];
+      if(rank < size) node = left[node];
+      else if(rank == size) return key(node);
+      else {
+        rank -= size + 1;
+        node = right[node];
+      }
+    }
+  }
+
+  /**
+   * Shrinks the arrays down to what the current entries need. Slots are
+   * handed out from the end, so this only helps after the tree stopped
+   * growing; deleted slots stay on the free list.
+   */
+  public void trimToSize() {
+    resize(used);
+  }
+
+  // plain lookup, no path
+  private int find(K key) {
+    int currentNode = root;
+    while(currentNode != NIL) {
+      int compare = key.compareTo(key(currentNode));
+      if(compare < 0) currentNode = left[currentNode];
+      else if(compare > 0) currentNode = right[currentNode];
+      else return currentNode;
+    }
+    return NIL;
+  }
+
+  /**
+   * Walks down from the root looking for the key, remembering every node
+   * it passes in path.
+   *
+   * @param key given key to look for
+   * @return the node with the key, or NIL if it isn't present
+   */
+  private int findPath(K key) {
+    int currentNode = root;
+    pathLength = 0;
+
+    while(currentNode != NIL) {
+      int compare = key.compareTo(key(currentNode));
+      if(compare == 0) return currentNode;
+      path[pathLength++] = currentNode;
+      pathCompare = compare;
+      currentNode = compare < 0 ? left[currentNode] : right[currentNode];
+    }
+    return NIL;
+  }
+
+  /**
+   * Hangs a new red node where the last findPath fell off the tree and fixes
+   * up the path, stopping the fixes once two levels in a row need none.
+   *
+   * @param node the new node
+   */
+  private void addBelowPath(int node) {
+    if(pathLength == 0) {
+      root = node;
+      setRed(root, false);
+      return;
+    }
+
+    int parent = path[pathLength - 1];
+    if(pathCompare < 0) left[parent] = node;
+    else right[parent] = node;
+
+    int quietLevels = 0;
+    for(int i = pathLength - 1; i >= 0; i--) {
+      int top = path[i];
+      subtreeSize[top]++;
+      if(quietLevels >= 2) continue;
+
+      boolean wasRed = isRed(top);
+      int fixed = top;
+      if(isRed(right[fixed]) && !isRed(left[fixed])) fixed = rotateLeft(fixed);
+      if(isRed(left[fixed]) && isRed(left[left[fixed]])) fixed = rotateRight(fixed);
+      if(isRed(left[fixed]) && isRed(right[fixed])) colorFlip(fixed);
+
+      if(fixed != top) replaceChild(i, top, fixed);
+      if(fixed == top && isRed(fixed) == wasRed) quietLevels++;
+      else quietLevels = 0;
+    }
+    setRed(root, false);
+  }
+
+  // removes the smallest node below the end of path, extending path to its parent
+  private int deleteMinBelowPath(int node) {
+    while(left[node] != NIL) {
+      if(!isRed(left[node]) && !isRed(left[left[node]])) node = moveRedLeft(node);
+      path[pathLength++] = node;
+      node = left[node];
+    }
+    replaceChild(pathLength, node, NIL);
+    return node;
+  }
+
+  // walks back up path after a removal, shrinking sizes and fixing leans
+  private void fixPathAfterDelete() {
+    for(int i = pathLength - 1; i >= 0; i--) {
+      int currentNode = path[i];
+      subtreeSize[currentNode]--;
+      int fixed = fixForDelete(currentNode);
+      if(fixed != currentNode) replaceChild(i, currentNode, fixed);
+    }
+    if(root != NIL) setRed(root, false);
+  }
+
+  private int moveRedLeft(int node) {
+    colorFlip(node);
+    if(isRed(left[right[node]])) {
+      right[node] = rotateRight(right[node]);
+      node = rotateAt(pathLength, node, rotateLeft(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private int moveRedRight(int node) {
+    colorFlip(node);
+    if(isRed(left[left[node]])) {
+      node = rotateAt(pathLength, node, rotateRight(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private int rotateAt(int i, int old, int rotated) {
+    replaceChild(i, old, rotated);
+    return rotated;
+  }
+
+  // puts replacement where old used to hang: under path[i - 1], or at the root
+  private void replaceChild(int i, int old, int replacement) {
+    if(i == 0) root = replacement;
+    else if(left[path[i - 1]] == old) left[path[i - 1]] = replacement;
+    else right[path[i - 1]] = replacement;
+  }
+
+  private int fixForDelete(int node) {
+    if(isRed(left[node]) && isRed(right[node])) colorFlip(node);
+    if(isRed(right[node]) && !isRed(left[node])) node = rotateLeft(node);
+    if(isRed(left[node]) && isRed(left[left[node]])) node = rotateRight(node);
+    if(isRed(left[node]) && isRed(right[node])) colorFlip(node);
+    return node;
+  }
+
+  private int rotateLeft(int oldRoot) {
+    int newRoot = right[oldRoot];
+    right[oldRoot] = left[newRoot];
+    left[newRoot] = oldRoot;
+
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+
+    subtreeSize[newRoot] = subtreeSize[oldRoot];
+    subtreeSize[oldRoot] = subtreeSize[left[oldRoot]] + subtreeSize[right[oldRoot]] + 1;
+    return newRoot;
+  }
+
+  private int rotateRight(int oldRoot) {
+    int newRoot = left[oldRoot];
+    left[oldRoot] = right[newRoot];
+    right[newRoot] = oldRoot;
+
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+
+    subtreeSize[newRoot] = subtreeSize[oldRoot];
+    subtreeSize[oldRoot] = subtreeSize[left[oldRoot]] + subtreeSize[right[oldRoot]] + 1;
+    return newRoot;
+  }
+
+  // only ever called on nodes with two real children, so NIL stays black
+  private void colorFlip(int parent) {
+    red[parent >>> 6] ^= 1L << parent;
+    red[left[parent] >>> 6] ^= 1L << left[parent];
+    red[right[parent] >>> 6] ^= 1L << right[parent];
+  }
+
+  private boolean isRed(int node) {
+    return (red[node >>> 6] & (1L << node)) != 0;
+  }
+
+  private void setRed(int node, boolean isRed) {
+    if(isRed) red[node >>> 6] |= 1L << node;
+    else red[node >>> 6] &= ~(1L << node);
+  }
+
+  /**
+   * Takes a slot off the free list, or the next unused one, and makes it a
+   * red leaf holding the pair
+   *
+   * @param key given key
+   * @param value given value
+   * @return the new node
+   */
+  private int newNode(K key, V value) {
+    int node;
+    if(free != NIL) {
+      node = free;
+      free = left[node];
+    }
+    else {
+      if(used == keys.length) resize(keys.length + (keys.length >> 1) + 1);
+      node = used++;
+    }
+
+    left[node] = NIL;
+    right[node] = NIL;
+    subtreeSize[node] = 1;
+    setRed(node, true);
+    keys[node] = key;
+    values[node] = value;
+    return node;
+  }
+
+  // puts a slot on the free list, dropping its key and value for the GC
+  private void freeNode(int node) {
+    keys[node] = null;
+    values[node] = null;
+    left[node] = free;
+    free = node;
+  }
+
+  private void resize(int slots) {
+    left = Arrays.copyOf(left, slots);
+    right = Arrays.copyOf(right, slots);
+    subtreeSize = Arrays.copyOf(subtreeSize, slots);
+    red = Arrays.copyOf(red, (slots + 63) >>> 6);
+    keys = Arrays.copyOf(keys, slots);
+    values = Arrays.copyOf(values, slots);
+  }
+
+  @SuppressWarnings("unchecked")
+  private K key(int node) {
+    return (K) keys[node];
+  }
+
+  @SuppressWarnings("unchecked")
+  private V value(int node) {
+    return (V) values[node];
+  }
+}
@@ -0,0 +1,93 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A text key stored as UTF-8 bytes, for trees keyed by words. Its first 8
+ * bytes are also packed big-endian into a long (zero padded), so most
+ * comparisons are one unsigned long compare on a field of the key itself:
+ * String.compareTo has to reach the String's backing array and walk it.
+ * Only keys that share all 8 leading bytes fall back to comparing the
+ * arrays, which Arrays.compareUnsigned does with a vectorized mismatch.
+ *
+ * Ordering is by unsigned bytes, which for UTF-8 is the same as ordering
+ * by code point (and so the same as String order for any text without
+ * surrogate pairs, words in particular).
+ */
+public final class ByteKey implements Comparable<ByteKey> {
+
+  private final long prefix; // the first 8 bytes, big-endian, zero padded
+  private final byte[] bytes;
+  private int hash; // cached, 0 until first asked for
+
+  private ByteKey(byte[] bytes) {
+    this.bytes = bytes;
+    long prefix = 0;
+    for(int i = 0; i < Long.BYTES; i++) {
+      prefix <<= 8;
+      if(i < bytes.length) prefix |= bytes[i] & 0xFF;
+    }
+    this.prefix = prefix;
+  }
+
+  /**
+   * Makes the key for a string
+   *
+   * @param string
+   * @return
+   */
+  public static ByteKey of(String string) {
+    return new ByteKey(string.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Makes the key for length UTF-8 bytes starting at offset. The bytes are
+   * copied, so the array can be reused.
+   *
+   * @param bytes
+   * @param offset
+   * @param length
+   * @return
+   */
+  public static ByteKey of(byte[] bytes, int offset, int length) {
+    return new ByteKey(Arrays.copyOfRange(bytes, offset, offset + length));
+  }
+
+  /**
+   * Returns the number of bytes in the key
+   *
+   * @return
+   */
+  public int length() {
+    return bytes.length;
+  }
+
+  @Override
+  public int compareTo(ByteKey other) {
+    int compare = Long.compareUnsigned(prefix, other.prefix);
+    if(compare != 0) return compare;
+    // same first 8 bytes (or fewer, zero padded) - the rest of the arrays, and then the lengths, decide
+    return Arrays.compareUnsigned(bytes, other.bytes);
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if(this == object) return true;
+    if(!(object instanceof ByteKey)) return false;
+    ByteKey other = (ByteKey) object;
+    return prefix == other.prefix && Arrays.equals(bytes, other.bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    if(hash == 0) hash = Arrays.hashCode(bytes);
+    return hash;
+  }
+
+  /**
+   * Returns the key decoded back to a string
+   */
+  @Override
+  public String toString() {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
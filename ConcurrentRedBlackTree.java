@@ -0,0 +1,305 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A RedBlackTree that many threads can share. Writers take a StampedLock's
+ * write lock one at a time (a rebalancing tree with sizes in every node has
+ * no two writes that are sure not to touch the same nodes, since both update
+ * the root's size). Readers of get, containsKey, select, findRank and size
+ * don't lock at all: they read optimistically, check their stamp afterwards,
+ * and only retry under the read lock if a write got in the way. So readers
+ * never block each other or the writers, and scale with cores as long as
+ * writes are the smaller share.
+ *
+ * The rarer ordered queries (first/last, predecessor/successor) just take
+ * the read lock.
+ */
+public class ConcurrentRedBlackTree<K extends Comparable<K>,V> {
+
+  // optimistic attempts before a reader gives up and takes the read lock
+  private static final int OPTIMISTIC_TRIES = 3;
+
+  private final RedBlackTree<K,V> tree = new RedBlackTree<>();
+  private final StampedLock lock = new StampedLock();
+
+
+  /**
+   * Adds or updates a key-value pair
+   *
+   * @param key
+   * @param value
+   */
+  public void put(K key, V value) {
+    long stamp = lock.writeLock();
+    try {
+      tree.put(key, value);
+    }
+    finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value, or null if the
+   * key wasn't present
+   *
+   * @param key
+   * @return
+   */
+  public V delete(K key) {
+    long stamp = lock.writeLock();
+    try {
+      return tree.delete(key);
+    }
+    finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Same as RedBlackTree.compute, done atomically. The function runs under
+   * the write lock, so keep it short.
+   *
+   * @param key
+   * @param remappingFunction
+   * @return the new value, or null if the key is now absent
+   */
+  public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    long stamp = lock.writeLock();
+    try {
+      return tree.compute(key, remappingFunction);
+    }
+    finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Same as RedBlackTree.merge, done atomically
+   *
+   * @param key
+   * @param value
+   * @param remappingFunction
+   * @return the new value, or null if the key is now absent
+   */
+  public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    long stamp = lock.writeLock();
+    try {
+      return tree.merge(key, value, remappingFunction);
+    }
+    finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Same as RedBlackTree.computeIfAbsent, done atomically
+   *
+   * @param key
+   * @param mappingFunction
+   * @return the present or computed value
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    long stamp = lock.writeLock();
+    try {
+      return tree.computeIfAbsent(key, mappingFunction);
+    }
+    finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Same as RedBlackTree.putIfAbsent, done atomically
+   *
+   * @param key
+   * @param value
+   * @return the previous value, or null if there wasn't one
+   */
+  public V putIfAbsent(K key, V value) {
+    long stamp = lock.writeLock();
+    try {
+      return tree.putIfAbsent(key, value);
+    }
+    finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns the value for the key, or null if it isn't present
+   *
+   * @param key
+   * @return
+   */
+  public V get(K key) {
+    return read(tree -> tree.getOptimistic(key), tree -> tree.get(key));
+  }
+
+  /**
+   * Returns true if the key is present
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(K key) {
+    return read(tree -> tree.containsKeyOptimistic(key), tree -> tree.containsKey(key));
+  }
+
+  /**
+   * Returns the key with the given rank
+   *
+   * @param rank
+   * @return
+   */
+  public K select(int rank) {
+    return read(tree -> tree.selectOptimistic(rank), tree -> tree.select(rank));
+  }
+
+  /**
+   * Returns the rank of the key, or -1 if it isn't present
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(K key) {
+    return read(tree -> tree.findRankOptimistic(key), tree -> tree.findRank(key));
+  }
+
+  /**
+   * Same as RedBlackTree.selectAll, under the read lock
+   *
+   * @param sortedRanks
+   * @return
+   */
+  public List<K> selectAll(int[] sortedRanks) {
+    return readLocked(tree -> tree.selectAll(sortedRanks));
+  }
+
+  /**
+   * Same as RedBlackTree.rankAll, under the read lock
+   *
+   * @param sortedKeys
+   * @return
+   */
+  public int[] rankAll(K[] sortedKeys) {
+    return readLocked(tree -> tree.rankAll(sortedKeys));
+  }
+
+  /**
+   * Returns the number of keys
+   *
+   * @return
+   */
+  public int size() {
+    return read(RedBlackTree::size, RedBlackTree::size);
+  }
+
+  /**
+   * Returns true if there are no keys
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Copies every entry, in key order, under the read lock: one consistent
+   * point of the tree, that writers only wait an O(n) copy for. The copy
+   * doesn't change with the tree.
+   *
+   * @return
+   */
+  public List<Map.Entry<K,V>> entries() {
+    return readLocked(tree -> {
+      List<Map.Entry<K,V>> entries = new ArrayList<>(tree.size());
+      for(Map.Entry<K,V> entry : tree) entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+      return entries;
+    });
+  }
+
+  /**
+   * Same as RedBlackTree.stats. It's sampled, so the read lock is only
+   * held for about a thousand lookups however big the tree is.
+   *
+   * @return
+   */
+  public TreeStats stats() {
+    return readLocked(RedBlackTree::stats);
+  }
+
+  /**
+   * Returns the smallest key, or null if empty
+   *
+   * @return
+   */
+  public K findFirstKey() {
+    return readLocked(tree -> tree.isEmpty() ? null : tree.findFirstKey());
+  }
+
+  /**
+   * Returns the largest key, or null if empty
+   *
+   * @return
+   */
+  public K findLastKey() {
+    return readLocked(RedBlackTree::findLastKey);
+  }
+
+  /**
+   * Same as RedBlackTree.findPredecessor
+   *
+   * @param key
+   * @return
+   */
+  public K findPredecessor(K key) {
+    return readLocked(tree -> tree.findPredecessor(key));
+  }
+
+  /**
+   * Same as RedBlackTree.findSuccessor
+   *
+   * @param key
+   * @return
+   */
+  public K findSuccessor(K key) {
+    return readLocked(tree -> tree.findSuccessor(key));
+  }
+
+  /**
+   * Runs a read optimistically, retrying under the read lock if a writer
+   * got in the way. A torn read can throw anything, so an exception only
+   * counts if the stamp is still valid.
+   */
+  private <T> T read(Function<RedBlackTree<K,V>, T> optimistic, Function<RedBlackTree<K,V>, T> locked) {
+    for(int i = 0; i < OPTIMISTIC_TRIES; i++) {
+      long stamp = lock.tryOptimisticRead();
+      if(stamp == 0) break; // a writer holds the lock - wait for it below
+
+      try {
+        T result = optimistic.apply(tree);
+        if(lock.validate(stamp)) return result;
+      }
+      catch(RuntimeException e) {
+        if(lock.validate(stamp)) throw e; // a real error, not a torn read
+      }
+    }
+    return readLocked(locked);
+  }
+
+  private <T> T readLocked(Function<RedBlackTree<K,V>, T> read) {
+    long stamp = lock.readLock();
+    try {
+      return read.apply(tree);
+    }
+    finally {
+      lock.unlockRead(stamp);
+    }
+  }
+}
@@ -0,0 +1,343 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only sorted map from Strings, with its keys front coded. The keys
+ * are kept as UTF-8 in one byte array, in blocks of BLOCK_SIZE: the first
+ * key of a block is stored whole, and every other key as the number of
+ * bytes it shares with the key before it plus the bytes that differ. Sorted
+ * words share long prefixes, so a vocabulary takes a few bytes per word
+ * instead of a String object and its array (48 or so bytes for a short
+ * word).
+ *
+ * Lookups binary search the blocks' first keys, then decode one block, so
+ * get, containsKey, findRank and select are O(log n + BLOCK_SIZE). Keys are
+ * compared as Strings (by UTF-16 code unit), so the order is exactly the
+ * order of the RedBlackTree the map was made from.
+ *
+ * The map never changes, so any number of threads can read it.
+ */
+public final class FrontCodedStringMap<V> implements Iterable<Map.Entry<String,V>> {
+
+  // keys per block - bigger blocks share more prefixes but take longer to scan
+  private static final int BLOCK_SIZE = 16;
+
+  // each thread's buffer for decoding keys in findRank and select, so lookups don't allocate
+  private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[64]);
+
+  private final byte[] keys; // every block, one after another
+  private final int[] blockOffsets; // where each block starts in keys
+  private final Object[] values; // by rank
+  private final int maxKeyLength; // in bytes, so one buffer fits any key
+
+  private FrontCodedStringMap(byte[] keys, int[] blockOffsets, Object[] values, int maxKeyLength) {
+    this.keys = keys;
+    this.blockOffsets = blockOffsets;
+    this.values = values;
+    this.maxKeyLength = maxKeyLength;
+  }
+
+  /**
+   * Copies a tree's entries into a new map, in O(n)
+   *
+   * @param tree
+   * @return
+   */
+  public static <V> FrontCodedStringMap<V> of(RedBlackTree<String, V> tree) {
+    int size = tree.size();
+    int[] blockOffsets = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+    Object[] values = new Object[size];
+    byte[] keys = new byte[Math.max(16, size * 4)];
+    int used = 0;
+    int maxKeyLength = 0;
+
+    byte[] previous = new byte[0];
+    int rank = 0;
+    for(Map.Entry<String, V> entry : tree) {
+      byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      // the first key of a block shares nothing, so a block can be decoded on its own
+      int shared = 0;
+      if(rank % BLOCK_SIZE == 0) blockOffsets[rank / BLOCK_SIZE] = used;
+      else {
+        shared = Arrays.mismatch(previous, key);
+        if(shared < 0) shared = key.length;
+      }
+
+      if(used + key.length - shared + 10 > keys.length) keys = Arrays.copyOf(keys, Math.max(keys.length * 2, used + key.length + 10));
+      if(rank % BLOCK_SIZE != 0) used = writeVarInt(keys, used, shared);
+      used = writeVarInt(keys, used, key.length - shared);
+      System.arraycopy(key, shared, keys, used, key.length - shared);
+      used += key.length - shared;
+
+      values[rank++] = entry.getValue();
+      maxKeyLength = Math.max(maxKeyLength, key.length);
+      previous = key;
+    }
+    return new FrontCodedStringMap<>(Arrays.copyOf(keys, used), blockOffsets, values, maxKeyLength);
+  }
+
+  /**
+   * Returns a new RedBlackTree with the same entries, built in O(n)
+   *
+   * @return
+   */
+  public RedBlackTree<String, V> toTree() {
+    String[] treeKeys = new String[size()];
+    int rank = 0;
+    for(Map.Entry<String, V> entry : this) treeKeys[rank++] = entry.getKey();
+    @SuppressWarnings("unchecked")
+    V[] treeValues = (V[]) values.clone();
+    return RedBlackTree.fromSorted(treeKeys, treeValues);
+  }
+
+  /**
+   * Returns the number of keys
+   *
+   * @return
+   */
+  public int size() {
+    return values.length;
+  }
+
+  /**
+   * Returns true if there are no keys
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return values.length == 0;
+  }
+
+  /**
+   * Returns the number of bytes the keys take up: the front-coded blocks
+   * and their offsets
+   *
+   * @return
+   */
+  public long keyBytes() {
+    return keys.length + (long) blockOffsets.length * Integer.BYTES;
+  }
+
+  /**
+   * Returns the value for the key, or null if it isn't present
+   *
+   * @param key
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public V get(String key) {
+    int rank = findRank(key);
+    return rank < 0 ? null : (V) values[rank];
+  }
+
+  /**
+   * Returns true if the key is present
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(String key) {
+    return findRank(key) >= 0;
+  }
+
+  /**
+   * Returns the rank of the key, or -1 if it isn't present
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(String key) {
+    // the last block whose first key is at most key - if there's none, key is before every key
+    int low = 0;
+    int high = blockOffsets.length - 1;
+    int block = -1;
+    while(low <= high) {
+      int middle = (low + high) >>> 1;
+      int offset = blockOffsets[middle];
+      int length = readVarInt(keys, offset);
+      offset += varIntLength(length);
+      int compare = compare(key, keys, offset, length);
+      if(compare == 0) return middle * BLOCK_SIZE;
+      if(compare > 0) {
+        block = middle;
+        low = middle + 1;
+      }
+      else high = middle - 1;
+    }
+    if(block < 0) return -1;
+
+    // decode the rest of the block until we reach or pass the key
+    byte[] buffer = buffer();
+    int offset = decodeFirst(block, buffer);
+    int end = Math.min(size(), (block + 1) * BLOCK_SIZE);
+    for(int rank = block * BLOCK_SIZE + 1; rank < end; rank++) {
+      long decoded = decodeNext(offset, buffer);
+      offset = (int) (decoded >>> 32);
+      int compare = compare(key, buffer, 0, (int) decoded);
+      if(compare == 0) return rank;
+      if(compare < 0) break;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank
+   *
+   * @param rank
+   * @return
+   */
+  public String select(int rank) {
+    if(rank < 0 || rank >= size()) throw new IllegalArgumentException("Rank is out of bounds!");
+    byte[] buffer = buffer();
+    int offset = decodeFirst(rank / BLOCK_SIZE, buffer);
+    int length = keyLength(rank / BLOCK_SIZE);
+    for(int i = 0; i < rank % BLOCK_SIZE; i++) {
+      long decoded = decodeNext(offset, buffer);
+      offset = (int) (decoded >>> 32);
+      length = (int) decoded;
+    }
+    return new String(buffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns an iterator over the entries in key order. Each key is decoded
+   * from the one before it, so a step is O(1) plus the key's length.
+   *
+   * @return
+   */
+  @Override
+  public Iterator<Map.Entry<String,V>> iterator() {
+    return new Iterator<>() {
+      private final byte[] buffer = new byte[maxKeyLength];
+      private int rank;
+      private int offset;
+
+      public boolean hasNext() {return rank < size();}
+
+      @SuppressWarnings("unchecked")
+      public Map.Entry<String,V> next() {
+        if(rank >= size()) throw new NoSuchElementException();
+        int length;
+        if(rank % BLOCK_SIZE == 0) {
+          offset = decodeFirst(rank / BLOCK_SIZE, buffer);
+          length = keyLength(rank / BLOCK_SIZE);
+        }
+        else {
+          long decoded = decodeNext(offset, buffer);
+          offset = (int) (decoded >>> 32);
+          length = (int) decoded;
+        }
+        String key = new String(buffer, 0, length, StandardCharsets.UTF_8);
+        return new AbstractMap.SimpleImmutableEntry<>(key, (V) values[rank++]);
+      }
+    };
+  }
+
+  // this thread's decoding buffer, grown if this map has longer keys than it's seen
+  private byte[] buffer() {
+    byte[] buffer = BUFFERS.get();
+    if(buffer.length < maxKeyLength) {
+      buffer = new byte[Math.max(maxKeyLength, buffer.length * 2)];
+      BUFFERS.set(buffer);
+    }
+    return buffer;
+  }
+
+  // copies block's first key into buffer, returning where the next key starts
+  private int decodeFirst(int block, byte[] buffer) {
+    int offset = blockOffsets[block];
+    int length = readVarInt(keys, offset);
+    offset += varIntLength(length);
+    System.arraycopy(keys, offset, buffer, 0, length);
+    return offset + length;
+  }
+
+  private int keyLength(int block) {
+    return readVarInt(keys, blockOffsets[block]);
+  }
+
+  // turns buffer's key into the next one (which starts at offset), returning where the one after starts (high int) and its length (low int)
+  private long decodeNext(int offset, byte[] buffer) {
+    int shared = readVarInt(keys, offset);
+    offset += varIntLength(shared);
+    int rest = readVarInt(keys, offset);
+    offset += varIntLength(rest);
+    System.arraycopy(keys, offset, buffer, shared, rest);
+    return (long) (offset + rest) << 32 | (shared + rest);
+  }
+
+  /**
+   * Compares a String to length UTF-8 bytes the way String.compareTo would,
+   * by UTF-16 code unit, decoding the bytes as it goes. (Comparing the
+   * bytes would order by code point, which puts supplementary characters
+   * after U+E000-U+FFFF instead of before.)
+   */
+  private static int compare(String key, byte[] bytes, int offset, int length) {
+    int end = offset + length;
+    int i = 0;
+    while(offset < end) {
+      int b = bytes[offset] & 0xFF;
+      int codePoint;
+      if(b < 0x80) {
+        codePoint = b;
+        offset++;
+      }
+      else if(b < 0xE0) {
+        codePoint = (b & 0x1F) << 6 | (bytes[offset + 1] & 0x3F);
+        offset += 2;
+      }
+      else if(b < 0xF0) {
+        codePoint = (b & 0x0F) << 12 | (bytes[offset + 1] & 0x3F) << 6 | (bytes[offset + 2] & 0x3F);
+        offset += 3;
+      }
+      else {
+        codePoint = (b & 0x07) << 18 | (bytes[offset + 1] & 0x3F) << 12 | (bytes[offset + 2] & 0x3F) << 6 | (bytes[offset + 3] & 0x3F);
+        offset += 4;
+      }
+
+      // a supplementary character is a surrogate pair in the String - compare it one code unit at a time
+      boolean pair = codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+      char unit = pair ? Character.highSurrogate(codePoint) : (char) codePoint;
+      if(i == key.length()) return -1;
+      int compare = Character.compare(key.charAt(i++), unit);
+      if(compare != 0) return compare;
+      if(pair) {
+        if(i == key.length()) return -1;
+        compare = Character.compare(key.charAt(i++), Character.lowSurrogate(codePoint));
+        if(compare != 0) return compare;
+      }
+    }
+    return i == key.length() ? 0 : 1;
+  }
+
+  private static int writeVarInt(byte[] bytes, int offset, int value) {
+    while((value & ~0x7F) != 0) {
+      bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[offset++] = (byte) value;
+    return offset;
+  }
+
+  private static int readVarInt(byte[] bytes, int offset) {
+    int value = 0;
+    for(int shift = 0; ; shift += 7) {
+      byte b = bytes[offset++];
+      value |= (b & 0x7F) << shift;
+      if(b >= 0) return value;
+    }
+  }
+
+  private static int varIntLength(int value) {
+    int length = 1;
+    while((value & ~0x7F) != 0) {
+      value >>>= 7;
+      length++;
+    }
+    return length;
+  }
+}
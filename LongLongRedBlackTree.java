@@ -0,0 +1,483 @@
+/**
+ * A red black tree with primitive long keys and long values. It has the same
+ * ordered API as RedBlackTree, but nothing is boxed and comparing keys is a
+ * plain < instead of a compareTo call.
+ * 
+ * Since a long can't be null, lookups that find nothing return noEntryKey or
+ * noEntryValue instead (both 0 unless given to the constructor).
+ */
+public class LongLongRedBlackTree {
+
+  // a red black tree with n < 2^31 nodes is at most 2*lg(n+1) < 64 levels tall
+  private static final int MAX_HEIGHT = 64;
+
+  private final long noEntryKey; // returned when there is no such key
+  private final long noEntryValue; // returned when there is no such value
+
+  private Node root; // our root node
+
+  // the nodes from the root down to where the last findPath stopped
+  private final Node[] path = new Node[MAX_HEIGHT];
+  private int pathLength; // number of nodes on path
+  private boolean pathLeft; // whether the key belongs left of the last node on path
+
+  // node class
+  private static class Node {
+
+    private boolean isRed;
+    private Node left = null;
+    private Node right = null;
+    private int subtreeSize = 0;
+    private long key;
+    private long value;
+
+    private Node(long key, long value, int size, boolean isRed) {
+      this.isRed = isRed;
+      this.key = key;
+      this.value = value;
+      this.subtreeSize = size;
+    }
+
+  }
+
+
+  /**
+   * Creates an empty tree whose missing keys and values read as 0
+   */
+  public LongLongRedBlackTree() {
+    this(0, 0);
+  }
+
+  /**
+   * Creates an empty tree
+   * 
+   * @param noEntryKey returned by key lookups that find nothing
+   * @param noEntryValue returned by value lookups that find nothing
+   */
+  public LongLongRedBlackTree(long noEntryKey, long noEntryValue) {
+    this.noEntryKey = noEntryKey;
+    this.noEntryValue = noEntryValue;
+    root = null;
+  }
+
+  /**
+   * Inserts a new key value pair into the tree, replacing the old value if
+   * the key was already there.
+   * 
+   * @param key given key to add
+   * @param value given value to add
+   */
+  public void put(long key, long value) {
+    Node node = findPath(key);
+    if(node != null) node.value = value;
+    else addBelowPath(new Node(key, value, 1, true));
+  }
+
+  /**
+   * Adds delta to the key's value, adding the key with value delta if it
+   * isn't present. One descent either way - this is the counter increment.
+   * 
+   * @param key given key to update
+   * @param delta amount to add
+   * @return the new value
+   */
+  public long addTo(long key, long delta) {
+    Node node = findPath(key);
+    if(node != null) return node.value += delta;
+    addBelowPath(new Node(key, delta, 1, true));
+    return delta;
+  }
+
+  /**
+   * Returns the value for the given key, or noEntryValue if the key is not
+   * present.
+   * 
+   * @param key
+   * @return
+   */
+  public long get(long key) {
+    Node currentNode = root;
+
+    while(currentNode != null) {
+      if(key < currentNode.key) currentNode = currentNode.left;
+      else if(key > currentNode.key) currentNode = currentNode.right;
+      else return currentNode.value;
+    }
+    return noEntryValue;
+  }
+
+  /**
+   * Returns true if the key is present.
+   * 
+   * @param key
+   * @return
+   */
+  public boolean containsKey(long key) {
+    Node currentNode = root;
+
+    while(currentNode != null) {
+      if(key < currentNode.key) currentNode = currentNode.left;
+      else if(key > currentNode.key) currentNode = currentNode.right;
+      else return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value, or noEntryValue
+   * if the key wasn't present.
+   * 
+   * @param key
+   * @return
+   */
+  public long delete(long key) {
+    if(root == null || !containsKey(key)) return noEntryValue;
+    // make the root red to take redness with us, unless a child already carries it
+    if(!isRed(root.left) && !isRed(root.right)) root.isRed = true;
+
+    long deletedValue;
+    Node currentNode = root;
+    pathLength = 0;
+
+    while(true) {
+      // going left - make sure the left child has redness
+      if(key < currentNode.key) {
+        if(!isRed(currentNode.left) && !isRed(currentNode.left.left)) currentNode = moveRedLeft(currentNode);
+        path[pathLength++] = currentNode;
+        currentNode = currentNode.left;
+        continue;
+      }
+
+      // going right or found - move redness right if it exists in left
+      if(isRed(currentNode.left)) currentNode = rotateAt(pathLength, currentNode, rotateRight(currentNode));
+
+      // found it with no children - just unhook it
+      if(key == currentNode.key && currentNode.right == null) {
+        deletedValue = currentNode.value;
+        replaceChild(pathLength, currentNode, null);
+        break;
+      }
+
+      if(!isRed(currentNode.right) && !isRed(currentNode.right.left)) currentNode = moveRedRight(currentNode);
+
+      // found it - swap in its successor and delete that instead
+      if(key == currentNode.key) {
+        deletedValue = currentNode.value;
+        path[pathLength++] = currentNode;
+        Node min = deleteMinBelowPath(currentNode.right);
+        currentNode.key = min.key;
+        currentNode.value = min.value;
+        break;
+      }
+
+      path[pathLength++] = currentNode;
+      currentNode = currentNode.right;
+    }
+
+    fixPathAfterDelete();
+    return deletedValue;
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   * 
+   * @return
+   */
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   * 
+   * @return
+   */
+  public int size() {return size(root);}
+
+  /**
+   * Returns the smallest key, or noEntryKey if the tree is empty.
+   * 
+   * @return
+   */
+  public long findFirstKey() {
+    Node currentNode = root;
+    if(currentNode == null) return noEntryKey;
+    while(currentNode.left != null) currentNode = currentNode.left;
+    return currentNode.key;
+  }
+
+  /**
+   * Returns the largest key, or noEntryKey if the tree is empty.
+   * 
+   * @return
+   */
+  public long findLastKey() {
+    Node currentNode = root;
+    if(currentNode == null) return noEntryKey;
+    while(currentNode.right != null) currentNode = currentNode.right;
+    return currentNode.key;
+  }
+
+  /**
+   * Returns the key that comes right before the given key, or noEntryKey if
+   * the key is not present or has no predecessor.
+   * 
+   * @param key
+   * @return
+   */
+  public long findPredecessor(long key) {
+    Node currentNode = root;
+    Node predecessor = null; // most recent ancestor from which we traveled right
+
+    while(currentNode != null) {
+      if(key < currentNode.key) currentNode = currentNode.left;
+      else if(key > currentNode.key) {
+        predecessor = currentNode;
+        currentNode = currentNode.right;
+      }
+      else {
+        // travel left once, then right as much as possible
+        if(currentNode.left != null) {
+          currentNode = currentNode.left;
+          while(currentNode.right != null) currentNode = currentNode.right;
+          return currentNode.key;
+        }
+        return predecessor != null ? predecessor.key : noEntryKey;
+      }
+    }
+    return noEntryKey; // the key doesn't exist
+  }
+
+  /**
+   * Returns the key that comes right after the given key, or noEntryKey if
+   * the key is not present or has no successor.
+   * 
+   * @param key
+   * @return
+   */
+  public long findSuccessor(long key) {
+    Node currentNode = root;
+    Node successor = null; // most recent ancestor from which we traveled left
+
+    while(currentNode != null) {
+      if(key < currentNode.key) {
+        successor = currentNode;
+        currentNode = currentNode.left;
+      }
+      else if(key > currentNode.key) currentNode = currentNode.right;
+      else {
+        // travel right once, then left as much as possible
+        if(currentNode.right != null) {
+          currentNode = currentNode.right;
+          while(currentNode.left != null) currentNode = currentNode.left;
+          return currentNode.key;
+        }
+        return successor != null ? successor.key : noEntryKey;
+      }
+    }
+    return noEntryKey; // the key doesn't exist
+  }
+
+  /**
+   * Returns the rank of the given key, or -1 if the key is not present.
+   * 
+   * @param key
+   * @return
+   */
+  public int findRank(long key) {
+    Node currentNode = root;
+    int rank = 0;
+
+    while(currentNode != null) {
+      if(key < currentNode.key) currentNode = currentNode.left;
+      else if(key > currentNode.key) {
+        // going right - count everything on the left plus this node
+        rank += size(currentNode.left) + 1;
+        currentNode = currentNode.right;
+      }
+      else return rank + size(currentNode.left);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank.
+   * 
+   * @param rank
+   * @return
+   */
+  public long select(int rank) {
+    if(rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+
+    Node node = root;
+    while(true) {
+      int size = size(node.left);
+      if(rank < size) node = node.left;
+      else if(rank == size) return node.key;
+      else {
+        rank -= size + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Walks down from the root looking for the key, remembering every node
+   * it passes in path.
+   * 
+   * @param key given key to look for
+   * @return the node with the key, or null if it isn't present
+   */
+  private Node findPath(long key) {
+    Node currentNode = root;
+    pathLength = 0;
+
+    while(currentNode != null) {
+      if(key == currentNode.key) return currentNode;
+      path[pathLength++] = currentNode;
+      pathLeft = key < currentNode.key;
+      currentNode = pathLeft ? currentNode.left : currentNode.right;
+    }
+    return null;
+  }
+
+  /**
+   * Hangs a new red node where the last findPath fell off the tree and fixes
+   * up the path, stopping the fixes once two levels in a row need none.
+   * 
+   * @param node the new node
+   */
+  private void addBelowPath(Node node) {
+    if(pathLength == 0) {
+      root = node;
+      root.isRed = false;
+      return;
+    }
+
+    Node parent = path[pathLength - 1];
+    if(pathLeft) parent.left = node;
+    else parent.right = node;
+
+    int quietLevels = 0;
+    for(int i = pathLength - 1; i >= 0; i--) {
+      Node top = path[i];
+      top.subtreeSize++;
+      if(quietLevels >= 2) continue;
+
+      boolean wasRed = top.isRed;
+      Node fixed = top;
+      if(isRed(fixed.right) && !isRed(fixed.left)) fixed = rotateLeft(fixed);
+      if(isRed(fixed.left) && isRed(fixed.left.left)) fixed = rotateRight(fixed);
+      if(isRed(fixed.left) && isRed(fixed.right)) colorFlip(fixed);
+
+      if(fixed != top) replaceChild(i, top, fixed);
+      if(fixed == top && fixed.isRed == wasRed) quietLevels++;
+      else quietLevels = 0;
+    }
+    root.isRed = false;
+  }
+
+  // removes the smallest node below the end of path, extending path to its parent
+  private Node deleteMinBelowPath(Node node) {
+    while(node.left != null) {
+      if(!isRed(node.left) && !isRed(node.left.left)) node = moveRedLeft(node);
+      path[pathLength++] = node;
+      node = node.left;
+    }
+    replaceChild(pathLength, node, null);
+    return node;
+  }
+
+  // walks back up path after a removal, shrinking sizes and fixing leans
+  private void fixPathAfterDelete() {
+    for(int i = pathLength - 1; i >= 0; i--) {
+      Node currentNode = path[i];
+      currentNode.subtreeSize--;
+      Node fixed = fixForDelete(currentNode);
+      if(fixed != currentNode) replaceChild(i, currentNode, fixed);
+      path[i] = null;
+    }
+    if(root != null) root.isRed = false;
+  }
+
+  private Node moveRedLeft(Node node) {
+    colorFlip(node);
+    if(isRed(node.right.left)) {
+      node.right = rotateRight(node.right);
+      node = rotateAt(pathLength, node, rotateLeft(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private Node moveRedRight(Node node) {
+    colorFlip(node);
+    if(isRed(node.left.left)) {
+      node = rotateAt(pathLength, node, rotateRight(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private Node rotateAt(int i, Node old, Node rotated) {
+    replaceChild(i, old, rotated);
+    return rotated;
+  }
+
+  // puts replacement where old used to hang: under path[i - 1], or at the root
+  private void replaceChild(int i, Node old, Node replacement) {
+    if(i == 0) root = replacement;
+    else if(path[i - 1].left == old) path[i - 1].left = replacement;
+    else path[i - 1].right = replacement;
+  }
+
+  private Node fixForDelete(Node currentNode) {
+    if(isRed(currentNode.left) && isRed(currentNode.right)) colorFlip(currentNode);
+    if(isRed(currentNode.right) && !isRed(currentNode.left)) currentNode = rotateLeft(currentNode);
+    if(isRed(currentNode.left) && isRed(currentNode.left.left)) currentNode = rotateRight(currentNode);
+    if(isRed(currentNode.left) && isRed(currentNode.right)) colorFlip(currentNode);
+    return currentNode;
+  }
+
+  private Node rotateLeft(Node oldRoot) {
+    Node newRoot = oldRoot.right;
+    oldRoot.right = newRoot.left;
+    newRoot.left = oldRoot;
+
+    newRoot.isRed = oldRoot.isRed;
+    oldRoot.isRed = true;
+
+    newRoot.subtreeSize = oldRoot.subtreeSize;
+    oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+    return newRoot;
+  }
+
+  private Node rotateRight(Node oldRoot) {
+    Node newRoot = oldRoot.left;
+    oldRoot.left = newRoot.right;
+    newRoot.right = oldRoot;
+
+    newRoot.isRed = oldRoot.isRed;
+    oldRoot.isRed = true;
+
+    newRoot.subtreeSize = oldRoot.subtreeSize;
+    oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+    return newRoot;
+  }
+
+  private void colorFlip(Node parent) {
+    parent.isRed = !parent.isRed;
+    parent.left.isRed = !parent.left.isRed;
+    parent.right.isRed = !parent.right.isRed;
+  }
+
+  private int size(Node node) {
+    return node == null ? 0 : node.subtreeSize;
+  }
+
+  private boolean isRed(Node node) {
+    return node != null && node.isRed;
+  }
+}
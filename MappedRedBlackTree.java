@@ -0,0 +1,913 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A long-to-long red black tree that lives in a memory-mapped file. Opening
+ * one only maps the file and reads a header, so a huge index is usable
+ * right away and its pages come in from disk as the tree touches them.
+ *
+ * Node records use the same 32-byte layout as OffHeapRedBlackTree. For crash
+ * safety, records that were part of the last commit are never written
+ * again: a change copies the records on its path to the end of the file
+ * and changes those instead (copy-on-write). commit() flushes the new
+ * records, then writes the new root into whichever of the two header slots
+ * is older. Each slot has a checksum, so after a crash the tree reopens at
+ * the last complete commit and anything written after it is ignored.
+ *
+ * Records replaced by copies are not reused; garbageRecords() says how
+ * many there are and compact() rewrites the file without them.
+ *
+ * Lookups that find nothing return noEntryKey or noEntryValue, as in
+ * OffHeapRedBlackTree. They're given when the file is opened (both 0
+ * unless given) and aren't stored in it.
+ */
+public class MappedRedBlackTree implements AutoCloseable {
+
+  // a red black tree with n < 2^31 nodes is at most 2*lg(n+1) < 64 levels tall
+  private static final int MAX_HEIGHT = 64;
+  private static final int NIL = 0; // the empty node, the first record in the file
+
+  // file layout: a header page with two commit slots, then the records
+  private static final int HEADER_BYTES = 4096;
+  private static final int SLOT_BYTES = 64;
+  private static final long MAGIC = 0x5242545245453031L; // "RBTREE01"
+  private static final int VERSION = 1;
+  private static final int SLOT_MAGIC = 0;
+  private static final int SLOT_VERSION = 8;
+  private static final int SLOT_ROOT = 12;
+  private static final int SLOT_GENERATION = 16;
+  private static final int SLOT_USED = 24;
+  private static final int SLOT_CHECKSUM = 28; // CRC32 of everything before it
+
+  // record layout
+  private static final int NODE_BYTES = 32;
+  private static final int LEFT = 0;
+  private static final int RIGHT = 4;
+  private static final int SIZE = 8;
+  private static final int COLOR = 12; // 1 = red
+  private static final int KEY = 16;
+  private static final int VALUE = 24;
+
+  private static final int CHUNK_SHIFT = 18; // each mapping covers 2^18 records = 8 MB
+  private static final int CHUNK_NODES = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_NODES - 1;
+  private static final long CHUNK_BYTES = (long) CHUNK_NODES * NODE_BYTES;
+
+  private final Path file;
+  private final long noEntryKey; // returned when there is no such key
+  private final long noEntryValue; // returned when there is no such value
+  private FileChannel channel;
+  private FileLock lock;
+  private MappedByteBuffer header;
+  private MappedByteBuffer[] chunks;
+  private boolean[] dirty; // chunks written since the last commit
+
+  private int root; // our root node
+  private int used; // records handed out so far, counting NIL
+  private int committed; // records below this belong to the last commit and are read-only
+  private int free = NIL; // records freed since the last commit, linked through LEFT
+  private long generation; // number of the last commit
+
+  // the nodes from the root down to where the last findPath stopped
+  private final int[] path = new int[MAX_HEIGHT];
+  private int pathLength; // number of nodes on path
+  private boolean pathLeft; // whether the key belongs left of the last node on path
+
+
+  private MappedRedBlackTree(Path file, long noEntryKey, long noEntryValue) throws IOException {
+    this.file = file;
+    this.noEntryKey = noEntryKey;
+    this.noEntryValue = noEntryValue;
+    map();
+  }
+
+  /**
+   * Opens the tree stored in the given file, creating an empty one if the
+   * file doesn't exist. Missing keys and values read as 0. Only one
+   * MappedRedBlackTree may have a file open at a time.
+   *
+   * @param file where the tree lives
+   * @return the tree as of its last commit
+   * @throws IOException if the file can't be opened, is locked, or isn't a tree
+   */
+  public static MappedRedBlackTree open(Path file) throws IOException {
+    return open(file, 0, 0);
+  }
+
+  /**
+   * Opens the tree stored in the given file, creating an empty one if the
+   * file doesn't exist. Only one MappedRedBlackTree may have a file open at
+   * a time.
+   *
+   * @param file where the tree lives
+   * @param noEntryKey returned by key lookups that find nothing
+   * @param noEntryValue returned by value lookups that find nothing
+   * @return the tree as of its last commit
+   * @throws IOException if the file can't be opened, is locked, or isn't a tree
+   */
+  public static MappedRedBlackTree open(Path file, long noEntryKey, long noEntryValue) throws IOException {
+    return new MappedRedBlackTree(file, noEntryKey, noEntryValue);
+  }
+
+  /**
+   * Inserts a new key value pair into the tree, replacing the old value if
+   * the key was already there.
+   *
+   * @param key given key to add
+   * @param value given value to add
+   */
+  public void put(long key, long value) {
+    int node = findWritablePath(key);
+    if(node != NIL) setLong(node, VALUE, value);
+    else addBelowPath(newNode(key, value));
+  }
+
+  /**
+   * Adds delta to the key's value, adding the key with value delta if it
+   * isn't present. One descent either way.
+   *
+   * @param key given key to update
+   * @param delta amount to add
+   * @return the new value
+   */
+  public long addTo(long key, long delta) {
+    int node = findWritablePath(key);
+    if(node == NIL) {
+      addBelowPath(newNode(key, delta));
+      return delta;
+    }
+    long value = getLong(node, VALUE) + delta;
+    setLong(node, VALUE, value);
+    return value;
+  }
+
+  /**
+   * Returns the value for the given key, or noEntryValue if the key is not
+   * present.
+   *
+   * @param key
+   * @return
+   */
+  public long get(long key) {
+    int node = find(key);
+    return node == NIL ? noEntryValue : getLong(node, VALUE);
+  }
+
+  /**
+   * Returns true if the key is present.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(long key) {
+    return find(key) != NIL;
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value, or noEntryValue
+   * if the key wasn't present.
+   *
+   * @param key
+   * @return
+   */
+  public long delete(long key) {
+    if(root == NIL || find(key) == NIL) return noEntryValue;
+    root = writable(root);
+    // make the root red to take redness with us, unless a child already carries it
+    if(!isRed(left(root)) && !isRed(right(root))) setRed(root, true);
+
+    long deletedValue;
+    int currentNode = root;
+    pathLength = 0;
+
+    // every node we touch on the way down is already a writable copy
+    while(true) {
+      // going left - make sure the left child has redness
+      if(key < key(currentNode)) {
+        if(!isRed(left(currentNode)) && !isRed(left(left(currentNode)))) currentNode = moveRedLeft(currentNode);
+        path[pathLength++] = currentNode;
+        currentNode = writableChild(currentNode, left(currentNode));
+        continue;
+      }
+
+      // going right or found - move redness right if it exists in left
+      if(isRed(left(currentNode))) currentNode = rotateAt(pathLength, currentNode, rotateRight(currentNode));
+
+      // found it with no children - just unhook it
+      if(right(currentNode) == NIL && key == key(currentNode)) {
+        deletedValue = getLong(currentNode, VALUE);
+        replaceChild(pathLength, currentNode, NIL);
+        freeNode(currentNode);
+        break;
+      }
+
+      if(!isRed(right(currentNode)) && !isRed(left(right(currentNode)))) currentNode = moveRedRight(currentNode);
+
+      // found it - swap in its successor and delete that instead
+      if(key == key(currentNode)) {
+        deletedValue = getLong(currentNode, VALUE);
+        path[pathLength++] = currentNode;
+        int min = deleteMinBelowPath(writableChild(currentNode, right(currentNode)));
+        setLong(currentNode, KEY, key(min));
+        setLong(currentNode, VALUE, getLong(min, VALUE));
+        freeNode(min);
+        break;
+      }
+
+      path[pathLength++] = currentNode;
+      currentNode = writableChild(currentNode, right(currentNode));
+    }
+
+    fixPathAfterDelete();
+    return deletedValue;
+  }
+
+  /**
+   * Makes every change since the last commit durable. Flushes the new
+   * records first, then points the older header slot at the new root, so
+   * a crash at any moment leaves one complete commit to reopen.
+   *
+   * @throws IOException if the file can't be written
+   */
+  public void commit() throws IOException {
+    for(int i = 0; i < chunks.length; i++) {
+      if(dirty[i]) {
+        chunks[i].force();
+        dirty[i] = false;
+      }
+    }
+
+    generation++;
+    int slot = (int) (generation & 1) * SLOT_BYTES;
+    header.putLong(slot + SLOT_MAGIC, MAGIC);
+    header.putInt(slot + SLOT_VERSION, VERSION);
+    header.putInt(slot + SLOT_ROOT, root);
+    header.putLong(slot + SLOT_GENERATION, generation);
+    header.putInt(slot + SLOT_USED, used);
+    header.putInt(slot + SLOT_CHECKSUM, checksum(header, slot));
+    header.force();
+
+    committed = used;
+    free = NIL; // freed records are below committed now, so they can't be written again
+  }
+
+  /**
+   * Throws away every change since the last commit.
+   */
+  public void rollback() {
+    readHeader();
+  }
+
+  /**
+   * Commits and closes the file.
+   *
+   * @throws IOException if the last commit fails
+   */
+  @Override
+  public void close() throws IOException {
+    if(channel == null) return;
+    commit();
+    unmap();
+  }
+
+  /**
+   * Returns the number of records in the file that the tree no longer uses
+   * (replaced by copies, or deleted). They take up space until compact() is
+   * called.
+   *
+   * @return
+   */
+  public int garbageRecords() {
+    return used - 1 - size(); // everything but NIL and the live nodes
+  }
+
+  /**
+   * Commits, then rewrites the file with only the live records, breadth
+   * first from the root, and swaps it in for the old one. Both files stay
+   * locked throughout, so no other process can open either one mid-swap.
+   * If anything fails, the tree carries on with the old file.
+   *
+   * @throws IOException if the new file can't be written, mapped or moved
+   */
+  public void compact() throws IOException {
+    commit();
+    Path temp = file.resolveSibling(file.getFileName() + ".compact");
+    Files.deleteIfExists(temp);
+    try {
+      writeCompacted(temp);
+      swapIn(temp);
+    }
+    catch(IOException | RuntimeException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  // writes the live records to a new tree file at temp
+  private void writeCompacted(Path temp) throws IOException {
+    int n = size();
+    try(MappedRedBlackTree target = open(temp)) {
+      // new record k is the k-th node we reach going breadth first. Until we
+      // get to it, its LEFT field holds our record number, so the target's
+      // records double as the queue
+      target.used = n + 1;
+      target.growTo(target.used);
+      if(root != NIL) target.setLeft(1, root);
+      int next = 2;
+      for(int node = 1; node <= n; node++) {
+        int old = target.left(node);
+        target.setSize(node, size(old));
+        target.setRed(node, isRed(old));
+        target.setLong(node, KEY, key(old));
+        target.setLong(node, VALUE, getLong(old, VALUE));
+
+        int newLeft = NIL;
+        int newRight = NIL;
+        if(left(old) != NIL) {
+          newLeft = next++;
+          target.setLeft(newLeft, left(old));
+        }
+        if(right(old) != NIL) {
+          newRight = next++;
+          target.setLeft(newRight, right(old));
+        }
+        target.setLeft(node, newLeft);
+        target.setRight(node, newRight);
+      }
+      target.root = n == 0 ? NIL : 1;
+      Arrays.fill(target.dirty, true);
+    }
+  }
+
+  /**
+   * Locks and maps the compacted file at temp, then moves it over ours. The
+   * new file is locked before it takes our file's name, and our old file
+   * stays locked until then. If mapping or moving fails, we go back to the
+   * old file's mappings.
+   */
+  private void swapIn(Path temp) throws IOException {
+    FileChannel oldChannel = channel;
+    FileLock oldLock = lock;
+    MappedByteBuffer oldHeader = header;
+    MappedByteBuffer[] oldChunks = chunks;
+    boolean[] oldDirty = dirty;
+
+    FileChannel newChannel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      FileLock newLock = newChannel.tryLock();
+      if(newLock == null) throw new IOException("\"" + temp + "\" is already open.");
+      attach(newChannel, newLock);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(IOException | RuntimeException e) {
+      newChannel.close();
+      // everything was committed before compacting, so the old header has it all
+      channel = oldChannel;
+      lock = oldLock;
+      header = oldHeader;
+      chunks = oldChunks;
+      dirty = oldDirty;
+      readHeader();
+      throw e;
+    }
+
+    // the old file is unlinked now - let it go
+    oldLock.release();
+    oldChannel.close();
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return root == NIL;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   *
+   * @return
+   */
+  public int size() {return size(root);}
+
+  /**
+   * Returns the smallest key, or noEntryKey if the tree is empty.
+   *
+   * @return
+   */
+  public long findFirstKey() {
+    if(root == NIL) return noEntryKey;
+    int node = root;
+    while(left(node) != NIL) node = left(node);
+    return key(node);
+  }
+
+  /**
+   * Returns the largest key, or noEntryKey if the tree is empty.
+   *
+   * @return
+   */
+  public long findLastKey() {
+    if(root == NIL) return noEntryKey;
+    int node = root;
+    while(right(node) != NIL) node = right(node);
+    return key(node);
+  }
+
+  /**
+   * Returns the key that comes right before the given key, or noEntryKey if
+   * the key is not present or has no predecessor.
+   *
+   * @param key
+   * @return
+   */
+  public long findPredecessor(long key) {
+    int currentNode = root;
+    int predecessor = NIL; // most recent ancestor from which we traveled right
+
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) currentNode = left(currentNode);
+      else if(key > currentKey) {
+        predecessor = currentNode;
+        currentNode = right(currentNode);
+      }
+      else {
+        // travel left once, then right as much as possible
+        if(left(currentNode) != NIL) {
+          currentNode = left(currentNode);
+          while(right(currentNode) != NIL) currentNode = right(currentNode);
+          return key(currentNode);
+        }
+        return predecessor != NIL ? key(predecessor) : noEntryKey;
+      }
+    }
+    return noEntryKey; // the key doesn't exist
+  }
+
+  /**
+   * Returns the key that comes right after the given key, or noEntryKey if
+   * the key is not present or has no successor.
+   *
+   * @param key
+   * @return
+   */
+  public long findSuccessor(long key) {
+    int currentNode = root;
+    int successor = NIL; // most recent ancestor from which we traveled left
+
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) {
+        successor = currentNode;
+        currentNode = left(currentNode);
+      }
+      else if(key > currentKey) currentNode = right(currentNode);
+      else {
+        // travel right once, then left as much as possible
+        if(right(currentNode) != NIL) {
+          currentNode = right(currentNode);
+          while(left(currentNode) != NIL) currentNode = left(currentNode);
+          return key(currentNode);
+        }
+        return successor != NIL ? key(successor) : noEntryKey;
+      }
+    }
+    return noEntryKey; // the key doesn't exist
+  }
+
+  /**
+   * Returns the rank of the given key, or -1 if the key is not present.
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(long key) {
+    int currentNode = root;
+    int rank = 0;
+
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) currentNode = left(currentNode);
+      else if(key > currentKey) {
+        // going right - count everything on the left plus this node
+        rank += size(left(currentNode)) + 1;
+        currentNode = right(currentNode);
+      }
+      else return rank + size(left(currentNode));
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank.
+   *
+   * @param rank
+   * @return
+   */
+  public long select(int rank) {
+    if(rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+
+    int node = root;
+    while(true) {
+      int size = size(left(node));
+      if(rank < size) node = left(node);
+      else if(rank == size) return key(node);
+      else {
+        rank -= size + 1;
+        node = right(node);
+      }
+    }
+  }
+
+  // plain lookup, no path
+  private int find(long key) {
+    int currentNode = root;
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) currentNode = left(currentNode);
+      else if(key > currentKey) currentNode = right(currentNode);
+      else return currentNode;
+    }
+    return NIL;
+  }
+
+  /**
+   * Walks down from the root looking for the key, copying every committed
+   * node it passes so the caller can change it, and remembering them in
+   * path.
+   *
+   * @param key given key to look for
+   * @return the (writable) node with the key, or NIL if it isn't present
+   */
+  private int findWritablePath(long key) {
+    pathLength = 0;
+    if(root == NIL) return NIL;
+
+    root = writable(root);
+    int currentNode = root;
+    while(true) {
+      long currentKey = key(currentNode);
+      if(key == currentKey) return currentNode;
+      path[pathLength++] = currentNode;
+      pathLeft = key < currentKey;
+
+      int child = pathLeft ? left(currentNode) : right(currentNode);
+      if(child == NIL) return NIL;
+      currentNode = writableChild(currentNode, child);
+    }
+  }
+
+  /**
+   * Hangs a new red node where the last findWritablePath fell off the tree
+   * and fixes up the path, stopping the fixes once two levels in a row need
+   * none.
+   *
+   * @param node the new node
+   */
+  private void addBelowPath(int node) {
+    if(pathLength == 0) {
+      root = node;
+      setRed(root, false);
+      return;
+    }
+
+    int parent = path[pathLength - 1];
+    if(pathLeft) setLeft(parent, node);
+    else setRight(parent, node);
+
+    int quietLevels = 0;
+    for(int i = pathLength - 1; i >= 0; i--) {
+      int top = path[i];
+      setSize(top, size(top) + 1);
+      if(quietLevels >= 2) continue;
+
+      boolean wasRed = isRed(top);
+      int fixed = top;
+      if(isRed(right(fixed)) && !isRed(left(fixed))) fixed = rotateLeft(fixed);
+      if(isRed(left(fixed)) && isRed(left(left(fixed)))) fixed = rotateRight(fixed);
+      if(isRed(left(fixed)) && isRed(right(fixed))) colorFlip(fixed);
+
+      if(fixed != top) replaceChild(i, top, fixed);
+      if(fixed == top && isRed(fixed) == wasRed) quietLevels++;
+      else quietLevels = 0;
+    }
+    setRed(root, false);
+  }
+
+  // removes the smallest node below the end of path, extending path to its parent
+  private int deleteMinBelowPath(int node) {
+    while(left(node) != NIL) {
+      if(!isRed(left(node)) && !isRed(left(left(node)))) node = moveRedLeft(node);
+      path[pathLength++] = node;
+      node = writableChild(node, left(node));
+    }
+    replaceChild(pathLength, node, NIL);
+    return node;
+  }
+
+  // walks back up path after a removal, shrinking sizes and fixing leans
+  private void fixPathAfterDelete() {
+    for(int i = pathLength - 1; i >= 0; i--) {
+      int currentNode = path[i];
+      setSize(currentNode, size(currentNode) - 1);
+      int fixed = fixForDelete(currentNode);
+      if(fixed != currentNode) replaceChild(i, currentNode, fixed);
+    }
+    if(root != NIL) setRed(root, false);
+  }
+
+  private int moveRedLeft(int node) {
+    colorFlip(node);
+    if(isRed(left(right(node)))) {
+      setRight(node, rotateRight(right(node)));
+      node = rotateAt(pathLength, node, rotateLeft(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private int moveRedRight(int node) {
+    colorFlip(node);
+    if(isRed(left(left(node)))) {
+      node = rotateAt(pathLength, node, rotateRight(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private int rotateAt(int i, int old, int rotated) {
+    replaceChild(i, old, rotated);
+    return rotated;
+  }
+
+  // puts replacement where old used to hang: under path[i - 1], or at the root
+  private void replaceChild(int i, int old, int replacement) {
+    if(i == 0) root = replacement;
+    else if(left(path[i - 1]) == old) setLeft(path[i - 1], replacement);
+    else setRight(path[i - 1], replacement);
+  }
+
+  private int fixForDelete(int node) {
+    if(isRed(left(node)) && isRed(right(node))) colorFlip(node);
+    if(isRed(right(node)) && !isRed(left(node))) node = rotateLeft(node);
+    if(isRed(left(node)) && isRed(left(left(node)))) node = rotateRight(node);
+    if(isRed(left(node)) && isRed(right(node))) colorFlip(node);
+    return node;
+  }
+
+  // oldRoot must be writable; the child coming up gets copied if it has to be
+  private int rotateLeft(int oldRoot) {
+    int newRoot = writableChild(oldRoot, right(oldRoot));
+    setRight(oldRoot, left(newRoot));
+    setLeft(newRoot, oldRoot);
+
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+
+    setSize(newRoot, size(oldRoot));
+    setSize(oldRoot, size(left(oldRoot)) + size(right(oldRoot)) + 1);
+    return newRoot;
+  }
+
+  private int rotateRight(int oldRoot) {
+    int newRoot = writableChild(oldRoot, left(oldRoot));
+    setLeft(oldRoot, right(newRoot));
+    setRight(newRoot, oldRoot);
+
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+
+    setSize(newRoot, size(oldRoot));
+    setSize(oldRoot, size(left(oldRoot)) + size(right(oldRoot)) + 1);
+    return newRoot;
+  }
+
+  // parent must be writable; its children get copied if they have to be
+  private void colorFlip(int parent) {
+    int left = writableChild(parent, left(parent));
+    int right = writableChild(parent, right(parent));
+    setRed(parent, !isRed(parent));
+    setRed(left, !isRed(left));
+    setRed(right, !isRed(right));
+  }
+
+  /**
+   * Returns a node we're allowed to change: the node itself if it was made
+   * since the last commit, or else a fresh copy of it
+   *
+   * @param node the node about to be changed
+   * @return the node or its copy (the caller has to link a copy in)
+   */
+  private int writable(int node) {
+    if(node >= committed) return node;
+
+    int copy = newNode(key(node), getLong(node, VALUE));
+    setLeft(copy, left(node));
+    setRight(copy, right(node));
+    setSize(copy, size(node));
+    setRed(copy, isRed(node));
+    return copy;
+  }
+
+  /**
+   * Makes a child of a writable parent writable, linking the copy (if any)
+   * into the parent
+   *
+   * @param parent a writable node
+   * @param child one of its children (not NIL)
+   * @return the writable child
+   */
+  private int writableChild(int parent, int child) {
+    int copy = writable(child);
+    if(copy != child) {
+      if(left(parent) == child) setLeft(parent, copy);
+      else setRight(parent, copy);
+    }
+    return copy;
+  }
+
+  /**
+   * Takes a record off the free list, or the next unused one, and makes it
+   * a red leaf holding the pair
+   *
+   * @param key given key
+   * @param value given value
+   * @return the new node
+   */
+  private int newNode(long key, long value) {
+    int node;
+    if(free != NIL) {
+      node = free;
+      free = left(node);
+    }
+    else {
+      if(used == Integer.MAX_VALUE) throw new IllegalStateException("Tree is full!");
+      growTo(used + 1);
+      node = used++;
+    }
+    dirty[node >>> CHUNK_SHIFT] = true;
+
+    setLeft(node, NIL);
+    setRight(node, NIL);
+    setSize(node, 1);
+    setRed(node, true);
+    setLong(node, KEY, key);
+    setLong(node, VALUE, value);
+    return node;
+  }
+
+  // only records made since the last commit ever get here
+  private void freeNode(int node) {
+    setLeft(node, free);
+    free = node;
+  }
+
+  // file handling
+
+  /**
+   * Opens and locks the file, then attaches to it
+   *
+   * @throws IOException if the file can't be opened, is locked, or isn't a tree
+   */
+  private void map() throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      FileLock lock = channel.tryLock();
+      if(lock == null) throw new IOException("\"" + file + "\" is already open.");
+      attach(channel, lock);
+    }
+    catch(IOException | RuntimeException e) {
+      channel.close();
+      this.channel = null;
+      throw e;
+    }
+  }
+
+  /**
+   * Maps the header and the records of an open, locked file and loads its
+   * newest valid commit (writing an empty one first for a new file)
+   */
+  private void attach(FileChannel channel, FileLock lock) throws IOException {
+    this.channel = channel;
+    this.lock = lock;
+    boolean isNew = channel.size() == 0;
+    header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    chunks = new MappedByteBuffer[0];
+    dirty = new boolean[0];
+
+    if(isNew) {
+      generation = 0;
+      root = NIL;
+      used = 1; // NIL: no children, size 0, black
+      committed = 0;
+      growTo(used);
+      dirty[0] = true;
+      commit();
+    }
+    else {
+      readHeader();
+      growTo(used);
+    }
+  }
+
+  // loads the newest header slot whose checksum is right
+  private void readHeader() {
+    int best = -1;
+    for(int slot = 0; slot < 2 * SLOT_BYTES; slot += SLOT_BYTES) {
+      if(header.getLong(slot + SLOT_MAGIC) != MAGIC) continue;
+      if(header.getInt(slot + SLOT_VERSION) != VERSION) continue;
+      if(header.getInt(slot + SLOT_CHECKSUM) != checksum(header, slot)) continue;
+      if(best < 0 || header.getLong(slot + SLOT_GENERATION) > header.getLong(best + SLOT_GENERATION)) best = slot;
+    }
+    if(best < 0) throw new IllegalStateException("\"" + file + "\" has no valid commit.");
+
+    generation = header.getLong(best + SLOT_GENERATION);
+    root = header.getInt(best + SLOT_ROOT);
+    used = header.getInt(best + SLOT_USED);
+    committed = used;
+    free = NIL;
+  }
+
+  private void unmap() throws IOException {
+    // the mappings go away when they're garbage collected
+    header = null;
+    chunks = null;
+    lock.release();
+    channel.close();
+    channel = null;
+  }
+
+  // maps more of the file (growing it) until records 0 to nodes - 1 are covered
+  private void growTo(int nodes) {
+    int needed = (nodes + CHUNK_MASK) >>> CHUNK_SHIFT;
+    if(needed <= chunks.length) return;
+
+    int had = chunks.length;
+    chunks = Arrays.copyOf(chunks, needed);
+    dirty = Arrays.copyOf(dirty, needed);
+    try {
+      for(int i = had; i < needed; i++) {
+        chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * CHUNK_BYTES, CHUNK_BYTES);
+        chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+    catch(IOException e) {
+      throw new IllegalStateException("Couldn't grow \"" + file + "\".", e);
+    }
+  }
+
+  private static int checksum(ByteBuffer header, int slot) {
+    CRC32 crc = new CRC32();
+    crc.update(header.duplicate().position(slot).limit(slot + SLOT_CHECKSUM));
+    return (int) crc.getValue();
+  }
+
+  // record access
+
+  private static int offset(int node) {
+    return (node & CHUNK_MASK) * NODE_BYTES;
+  }
+
+  private int getInt(int node, int field) {
+    return chunks[node >>> CHUNK_SHIFT].getInt(offset(node) + field);
+  }
+
+  private int left(int node) {return getInt(node, LEFT);}
+  private int right(int node) {return getInt(node, RIGHT);}
+  private int size(int node) {return getInt(node, SIZE);}
+  private long key(int node) {return getLong(node, KEY);}
+  private boolean isRed(int node) {return getInt(node, COLOR) != 0;}
+
+  private void setLeft(int node, int child) {setInt(node, LEFT, child);}
+  private void setRight(int node, int child) {setInt(node, RIGHT, child);}
+  private void setSize(int node, int size) {setInt(node, SIZE, size);}
+  private void setRed(int node, boolean isRed) {setInt(node, COLOR, isRed ? 1 : 0);}
+
+  private void setInt(int node, int field, int value) {
+    chunks[node >>> CHUNK_SHIFT].putInt(offset(node) + field, value);
+  }
+
+  private long getLong(int node, int field) {
+    return chunks[node >>> CHUNK_SHIFT].getLong(offset(node) + field);
+  }
+
+  private void setLong(int node, int field, long value) {
+    chunks[node >>> CHUNK_SHIFT].putLong(offset(node) + field, value);
+  }
+}
@@ -0,0 +1,118 @@
+import java.util.Comparator;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A way to sum up values: an identity, a summary of one value, and an
+ * associative combine (it needn't be commutative - the tree always
+ * combines in key order). A RedBlackTree made with a monoid keeps the
+ * summary of every subtree in its root, so RedBlackTree.aggregate can sum
+ * up any key range in O(log n).
+ *
+ * @param <V> the tree's value type
+ * @param <A> the summary type
+ */
+public interface Monoid<V, A> {
+
+  /**
+   * Returns the summary of no values
+   *
+   * @return
+   */
+  A identity();
+
+  /**
+   * Returns the summary of one value
+   *
+   * @param value
+   * @return
+   */
+  A lift(V value);
+
+  /**
+   * Returns the summary of left's values followed by right's
+   *
+   * @param left
+   * @param right
+   * @return
+   */
+  A combine(A left, A right);
+
+  /**
+   * Makes a monoid out of its three parts
+   *
+   * @param identity
+   * @param lift
+   * @param combine
+   * @return
+   */
+  static <V, A> Monoid<V, A> of(A identity, Function<? super V, ? extends A> lift, BinaryOperator<A> combine) {
+    return new Monoid<>() {
+      public A identity() {return identity;}
+      public A lift(V value) {return lift.apply(value);}
+      public A combine(A left, A right) {return combine.apply(left, right);}
+    };
+  }
+
+  /**
+   * Sums a number taken from each value, such as a word's count
+   *
+   * @param toLong
+   * @return
+   */
+  static <V> Monoid<V, Long> sum(ToLongFunction<? super V> toLong) {
+    return of(0L, value -> toLong.applyAsLong(value), Long::sum);
+  }
+
+  /**
+   * Keeps the smallest value, or null for none
+   *
+   * @param comparator
+   * @return
+   */
+  static <V> Monoid<V, V> min(Comparator<? super V> comparator) {
+    return new Extreme<>(comparator);
+  }
+
+  /**
+   * Keeps the largest value, or null for none. A tree made with it can
+   * also find the top values in a key range (RedBlackTree.topByValue).
+   *
+   * @param comparator
+   * @return
+   */
+  static <V> Monoid<V, V> max(Comparator<? super V> comparator) {
+    return new Extreme<>(comparator.reversed());
+  }
+
+  /**
+   * The min and max monoids: keeps whichever value comes first in its
+   * order, skipping nulls. It hands out the order so a tree can tell which
+   * way its summaries point.
+   */
+  final class Extreme<V> implements Monoid<V, V> {
+    private final Comparator<? super V> order;
+
+    private Extreme(Comparator<? super V> order) {
+      this.order = order;
+    }
+
+    public V identity() {return null;}
+
+    public V lift(V value) {return value;}
+
+    public V combine(V left, V right) {
+      if(left == null) return right;
+      if(right == null) return left;
+      return order.compare(left, right) <= 0 ? left : right;
+    }
+
+    /**
+     * Returns the order whose first value is kept - reversed for max
+     *
+     * @return
+     */
+    public Comparator<? super V> order() {return order;}
+  }
+}
@@ -0,0 +1,654 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A red black tree with long keys and long values whose nodes live outside
+ * the Java heap, in direct ByteBuffers. The heap only holds the tree object
+ * and an array of buffer references, so heap size and GC pauses stay flat
+ * no matter how many entries the tree holds.
+ *
+ * Each node is a fixed 32-byte record (left, right, subtreeSize, color, key,
+ * value) addressed by index, like ArrayRedBlackTree. Records are carved out
+ * of chunks of up to 32 MB, so the tree can grow past the 2 GB limit of a
+ * single buffer. Deleted records go on a free list and are reused;
+ * compact() moves the live records together and gives the rest back.
+ *
+ * Lookups that find nothing return noEntryKey or noEntryValue, as in
+ * LongLongRedBlackTree.
+ */
+public class OffHeapRedBlackTree {
+
+  // a red black tree with n < 2^31 nodes is at most 2*lg(n+1) < 64 levels tall
+  private static final int MAX_HEIGHT = 64;
+  private static final int NIL = 0; // the empty node, record 0 of chunk 0
+
+  // record layout
+  private static final int NODE_BYTES = 32;
+  private static final int LEFT = 0;
+  private static final int RIGHT = 4;
+  private static final int SIZE = 8;
+  private static final int COLOR = 12; // 1 = red
+  private static final int KEY = 16;
+  private static final int VALUE = 24;
+
+  private static final int CHUNK_SHIFT = 20; // 2^20 records = 32 MB per chunk
+  private static final int CHUNK_NODES = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_NODES - 1;
+  private static final int FIRST_CHUNK_NODES = 1024; // a new last chunk starts this small and doubles
+
+  private final long noEntryKey; // returned when there is no such key
+  private final long noEntryValue; // returned when there is no such value
+
+  private ByteBuffer[] chunks = new ByteBuffer[0];
+  private int root = NIL; // our root node
+  private int used; // records handed out so far, counting NIL
+  private int free = NIL; // head of the free list, linked through LEFT
+
+  // the nodes from the root down to where the last findPath stopped
+  private final int[] path = new int[MAX_HEIGHT];
+  private int pathLength; // number of nodes on path
+  private boolean pathLeft; // whether the key belongs left of the last node on path
+
+
+  /**
+   * Creates an empty tree whose missing keys and values read as 0
+   */
+  public OffHeapRedBlackTree() {
+    this(0, 0);
+  }
+
+  /**
+   * Creates an empty tree
+   *
+   * @param noEntryKey returned by key lookups that find nothing
+   * @param noEntryValue returned by value lookups that find nothing
+   */
+  public OffHeapRedBlackTree(long noEntryKey, long noEntryValue) {
+    this.noEntryKey = noEntryKey;
+    this.noEntryValue = noEntryValue;
+    clear();
+  }
+
+  /**
+   * Inserts a new key value pair into the tree, replacing the old value if
+   * the key was already there.
+   *
+   * @param key given key to add
+   * @param value given value to add
+   */
+  public void put(long key, long value) {
+    int node = findPath(key);
+    if(node != NIL) setLong(node, VALUE, value);
+    else addBelowPath(newNode(key, value));
+  }
+
+  /**
+   * Adds delta to the key's value, adding the key with value delta if it
+   * isn't present. One descent either way.
+   *
+   * @param key given key to update
+   * @param delta amount to add
+   * @return the new value
+   */
+  public long addTo(long key, long delta) {
+    int node = findPath(key);
+    if(node == NIL) {
+      addBelowPath(newNode(key, delta));
+      return delta;
+    }
+    long value = getLong(node, VALUE) + delta;
+    setLong(node, VALUE, value);
+    return value;
+  }
+
+  /**
+   * Returns the value for the given key, or noEntryValue if the key is not
+   * present.
+   *
+   * @param key
+   * @return
+   */
+  public long get(long key) {
+    int node = find(key);
+    return node == NIL ? noEntryValue : getLong(node, VALUE);
+  }
+
+  /**
+   * Returns true if the key is present.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(long key) {
+    return find(key) != NIL;
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value, or noEntryValue
+   * if the key wasn't present.
+   *
+   * @param key
+   * @return
+   */
+  public long delete(long key) {
+    if(root == NIL || find(key) == NIL) return noEntryValue;
+    // make the root red to take redness with us, unless a child already carries it
+    if(!isRed(left(root)) && !isRed(right(root))) setRed(root, true);
+
+    long deletedValue;
+    int currentNode = root;
+    pathLength = 0;
+
+    while(true) {
+      // going left - make sure the left child has redness
+      if(key < key(currentNode)) {
+        if(!isRed(left(currentNode)) && !isRed(left(left(currentNode)))) currentNode = moveRedLeft(currentNode);
+        path[pathLength++] = currentNode;
+        currentNode = left(currentNode);
+        continue;
+      }
+
+      // going right or found - move redness right if it exists in left
+      if(isRed(left(currentNode))) currentNode = rotateAt(pathLength, currentNode, rotateRight(currentNode));
+
+      // found it with no children - just unhook it
+      if(right(currentNode) == NIL && key == key(currentNode)) {
+        deletedValue = getLong(currentNode, VALUE);
+        replaceChild(pathLength, currentNode, NIL);
+        freeNode(currentNode);
+        break;
+      }
+
+      if(!isRed(right(currentNode)) && !isRed(left(right(currentNode)))) currentNode = moveRedRight(currentNode);
+
+      // found it - swap in its successor and delete that instead
+      if(key == key(currentNode)) {
+        deletedValue = getLong(currentNode, VALUE);
+        path[pathLength++] = currentNode;
+        int min = deleteMinBelowPath(right(currentNode));
+        setLong(currentNode, KEY, key(min));
+        setLong(currentNode, VALUE, getLong(min, VALUE));
+        freeNode(min);
+        break;
+      }
+
+      path[pathLength++] = currentNode;
+      currentNode = right(currentNode);
+    }
+
+    fixPathAfterDelete();
+    return deletedValue;
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return root == NIL;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   *
+   * @return
+   */
+  public int size() {return size(root);}
+
+  /**
+   * Returns the number of off-heap bytes the tree is holding on to,
+   * including free records
+   *
+   * @return
+   */
+  public long offHeapBytes() {
+    long bytes = 0;
+    for(ByteBuffer chunk : chunks) bytes += chunk.capacity();
+    return bytes;
+  }
+
+  /**
+   * Returns the smallest key, or noEntryKey if the tree is empty.
+   *
+   * @return
+   */
+  public long findFirstKey() {
+    if(root == NIL) return noEntryKey;
+    int node = root;
+    while(left(node) != NIL) node = left(node);
+    return key(node);
+  }
+
+  /**
+   * Returns the largest key, or noEntryKey if the tree is empty.
+   *
+   * @return
+   */
+  public long findLastKey() {
+    if(root == NIL) return noEntryKey;
+    int node = root;
+    while(right(node) != NIL) node = right(node);
+    return key(node);
+  }
+
+  /**
+   * Returns the key that comes right before the given key, or noEntryKey if
+   * the key is not present or has no predecessor.
+   *
+   * @param key
+   * @return
+   */
+  public long findPredecessor(long key) {
+    int currentNode = root;
+    int predecessor = NIL; // most recent ancestor from which we traveled right
+
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) currentNode = left(currentNode);
+      else if(key > currentKey) {
+        predecessor = currentNode;
+        currentNode = right(currentNode);
+      }
+      else {
+        // travel left once, then right as much as possible
+        if(left(currentNode) != NIL) {
+          currentNode = left(currentNode);
+          while(right(currentNode) != NIL) currentNode = right(currentNode);
+          return key(currentNode);
+        }
+        return predecessor != NIL ? key(predecessor) : noEntryKey;
+      }
+    }
+    return noEntryKey; // the key doesn't exist
+  }
+
+  /**
+   * Returns the key that comes right after the given key, or noEntryKey if
+   * the key is not present or has no successor.
+   *
+   * @param key
+   * @return
+   */
+  public long findSuccessor(long key) {
+    int currentNode = root;
+    int successor = NIL; // most recent ancestor from which we traveled left
+
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) {
+        successor = currentNode;
+        currentNode = left(currentNode);
+      }
+      else if(key > currentKey) currentNode = right(currentNode);
+      else {
+        // travel right once, then left as much as possible
+        if(right(currentNode) != NIL) {
+          currentNode = right(currentNode);
+          while(left(currentNode) != NIL) currentNode = left(currentNode);
+          return key(currentNode);
+        }
+        return successor != NIL ? key(successor) : noEntryKey;
+      }
+    }
+    return noEntryKey; // the key doesn't exist
+  }
+
+  /**
+   * Returns the rank of the given key, or -1 if the key is not present.
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(long key) {
+    int currentNode = root;
+    int rank = 0;
+
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) currentNode = left(currentNode);
+      else if(key > currentKey) {
+        // going right - count everything on the left plus this node
+        rank += size(left(currentNode)) + 1;
+        currentNode = right(currentNode);
+      }
+      else return rank + size(left(currentNode));
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank.
+   *
+   * @param rank
+   * @return
+   */
+  public long select(int rank) {
+    if(rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+
+    int node = root;
+    while(true) {
+      int size = size(left(node));
+      if(rank < size) node = left(node);
+      else if(rank == size) return key(node);
+      else {
+        rank -= size + 1;
+        node = right(node);
+      }
+    }
+  }
+
+  /**
+   * Removes everything, giving back all but the first chunk
+   */
+  public void clear() {
+    chunks = new ByteBuffer[] {newChunk(FIRST_CHUNK_NODES)};
+    root = NIL;
+    used = 1; // NIL is all zeroes already: no children, size 0, black
+    free = NIL;
+  }
+
+  /**
+   * Copies the live records into fresh chunks, breadth first from the root
+   * so the top of the tree shares a few pages, and drops the old chunks
+   * along with every free record. Needs room for a second copy while it
+   * runs.
+   */
+  public void compact() {
+    int n = size();
+    ByteBuffer[] oldChunks = chunks;
+    // full chunks, then just enough for the rest
+    chunks = new ByteBuffer[((n + 1) >>> CHUNK_SHIFT) + 1];
+    for(int i = 0; i < chunks.length - 1; i++) chunks[i] = newChunk(CHUNK_NODES);
+    chunks[chunks.length - 1] = newChunk(Math.max((n + 1) & CHUNK_MASK, 1));
+
+    // new record k is the k-th node we reach going breadth first. Until we get
+    // to it, its LEFT field holds the old record number, so the new chunks
+    // double as the queue
+    int next = 1;
+    if(root != NIL) setLeft(next++, root);
+    for(int node = 1; node <= n; node++) {
+      int old = left(node);
+      int oldLeft = readInt(oldChunks, old, LEFT);
+      int oldRight = readInt(oldChunks, old, RIGHT);
+
+      setSize(node, readInt(oldChunks, old, SIZE));
+      setInt(node, COLOR, readInt(oldChunks, old, COLOR));
+      setLong(node, KEY, oldChunks[old >>> CHUNK_SHIFT].getLong(offset(old) + KEY));
+      setLong(node, VALUE, oldChunks[old >>> CHUNK_SHIFT].getLong(offset(old) + VALUE));
+
+      int newLeft = NIL;
+      int newRight = NIL;
+      if(oldLeft != NIL) {
+        newLeft = next++;
+        setLeft(newLeft, oldLeft);
+      }
+      if(oldRight != NIL) {
+        newRight = next++;
+        setLeft(newRight, oldRight);
+      }
+      setLeft(node, newLeft);
+      setRight(node, newRight);
+    }
+
+    root = n == 0 ? NIL : 1;
+    used = n + 1;
+    free = NIL;
+  }
+
+  // plain lookup, no path
+  private int find(long key) {
+    int currentNode = root;
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key < currentKey) currentNode = left(currentNode);
+      else if(key > currentKey) currentNode = right(currentNode);
+      else return currentNode;
+    }
+    return NIL;
+  }
+
+  /**
+   * Walks down from the root looking for the key, remembering every node
+   * it passes in path.
+   *
+   * @param key given key to look for
+   * @return the node with the key, or NIL if it isn't present
+   */
+  private int findPath(long key) {
+    int currentNode = root;
+    pathLength = 0;
+
+    while(currentNode != NIL) {
+      long currentKey = key(currentNode);
+      if(key == currentKey) return currentNode;
+      path[pathLength++] = currentNode;
+      pathLeft = key < currentKey;
+      currentNode = pathLeft ? left(currentNode) : right(currentNode);
+    }
+    return NIL;
+  }
+
+  /**
+   * Hangs a new red node where the last findPath fell off the tree and fixes
+   * up the path, stopping the fixes once two levels in a row need none.
+   *
+   * @param node the new node
+   */
+  private void addBelowPath(int node) {
+    if(pathLength == 0) {
+      root = node;
+      setRed(root, false);
+      return;
+    }
+
+    int parent = path[pathLength - 1];
+    if(pathLeft) setLeft(parent, node);
+    else setRight(parent, node);
+
+    int quietLevels = 0;
+    for(int i = pathLength - 1; i >= 0; i--) {
+      int top = path[i];
+      setSize(top, size(top) + 1);
+      if(quietLevels >= 2) continue;
+
+      boolean wasRed = isRed(top);
+      int fixed = top;
+      if(isRed(right(fixed)) && !isRed(left(fixed))) fixed = rotateLeft(fixed);
+      if(isRed(left(fixed)) && isRed(left(left(fixed)))) fixed = rotateRight(fixed);
+      if(isRed(left(fixed)) && isRed(right(fixed))) colorFlip(fixed);
+
+      if(fixed != top) replaceChild(i, top, fixed);
+      if(fixed == top && isRed(fixed) == wasRed) quietLevels++;
+      else quietLevels = 0;
+    }
+    setRed(root, false);
+  }
+
+  // removes the smallest node below the end of path, extending path to its parent
+  private int deleteMinBelowPath(int node) {
+    while(left(node) != NIL) {
+      if(!isRed(left(node)) && !isRed(left(left(node)))) node = moveRedLeft(node);
+      path[pathLength++] = node;
+      node = left(node);
+    }
+    replaceChild(pathLength, node, NIL);
+    return node;
+  }
+
+  // walks back up path after a removal, shrinking sizes and fixing leans
+  private void fixPathAfterDelete() {
+    for(int i = pathLength - 1; i >= 0; i--) {
+      int currentNode = path[i];
+      setSize(currentNode, size(currentNode) - 1);
+      int fixed = fixForDelete(currentNode);
+      if(fixed != currentNode) replaceChild(i, currentNode, fixed);
+    }
+    if(root != NIL) setRed(root, false);
+  }
+
+  private int moveRedLeft(int node) {
+    colorFlip(node);
+    if(isRed(left(right(node)))) {
+      setRight(node, rotateRight(right(node)));
+      node = rotateAt(pathLength, node, rotateLeft(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private int moveRedRight(int node) {
+    colorFlip(node);
+    if(isRed(left(left(node)))) {
+      node = rotateAt(pathLength, node, rotateRight(node));
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  private int rotateAt(int i, int old, int rotated) {
+    replaceChild(i, old, rotated);
+    return rotated;
+  }
+
+  // puts replacement where old used to hang: under path[i - 1], or at the root
+  private void replaceChild(int i, int old, int replacement) {
+    if(i == 0) root = replacement;
+    else if(left(path[i - 1]) == old) setLeft(path[i - 1], replacement);
+    else setRight(path[i - 1], replacement);
+  }
+
+  private int fixForDelete(int node) {
+    if(isRed(left(node)) && isRed(right(node))) colorFlip(node);
+    if(isRed(right(node)) && !isRed(left(node))) node = rotateLeft(node);
+    if(isRed(left(node)) && isRed(left(left(node)))) node = rotateRight(node);
+    if(isRed(left(node)) && isRed(right(node))) colorFlip(node);
+    return node;
+  }
+
+  private int rotateLeft(int oldRoot) {
+    int newRoot = right(oldRoot);
+    setRight(oldRoot, left(newRoot));
+    setLeft(newRoot, oldRoot);
+
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+
+    setSize(newRoot, size(oldRoot));
+    setSize(oldRoot, size(left(oldRoot)) + size(right(oldRoot)) + 1);
+    return newRoot;
+  }
+
+  private int rotateRight(int oldRoot) {
+    int newRoot = left(oldRoot);
+    setLeft(oldRoot, right(newRoot));
+    setRight(newRoot, oldRoot);
+
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+
+    setSize(newRoot, size(oldRoot));
+    setSize(oldRoot, size(left(oldRoot)) + size(right(oldRoot)) + 1);
+    return newRoot;
+  }
+
+  // only ever called on nodes with two real children, so NIL stays black
+  private void colorFlip(int parent) {
+    setRed(parent, !isRed(parent));
+    setRed(left(parent), !isRed(left(parent)));
+    setRed(right(parent), !isRed(right(parent)));
+  }
+
+  /**
+   * Takes a record off the free list, or the next unused one, and makes it
+   * a red leaf holding the pair
+   *
+   * @param key given key
+   * @param value given value
+   * @return the new node
+   */
+  private int newNode(long key, long value) {
+    int node;
+    if(free != NIL) {
+      node = free;
+      free = left(node);
+    }
+    else {
+      if(used == Integer.MAX_VALUE) throw new IllegalStateException("Tree is full!");
+      makeRoomFor(used);
+      node = used++;
+    }
+
+    setLeft(node, NIL);
+    setRight(node, NIL);
+    setSize(node, 1);
+    setRed(node, true);
+    setLong(node, KEY, key);
+    setLong(node, VALUE, value);
+    return node;
+  }
+
+  private void freeNode(int node) {
+    setLeft(node, free);
+    free = node;
+  }
+
+  /**
+   * Makes sure record node has somewhere to live: starts a new chunk, or
+   * doubles the last one (only the last chunk is ever less than full size)
+   *
+   * @param node the record about to be handed out
+   */
+  private void makeRoomFor(int node) {
+    int chunk = node >>> CHUNK_SHIFT;
+    if(chunk == chunks.length) {
+      chunks = Arrays.copyOf(chunks, chunks.length + 1);
+      chunks[chunk] = newChunk(FIRST_CHUNK_NODES);
+    }
+    else if(offset(node) == chunks[chunk].capacity()) {
+      ByteBuffer bigger = newChunk(Math.min(chunks[chunk].capacity() / NODE_BYTES * 2, CHUNK_NODES));
+      bigger.put(chunks[chunk].duplicate().clear());
+      chunks[chunk] = bigger;
+    }
+  }
+
+  private static ByteBuffer newChunk(int nodes) {
+    return ByteBuffer.allocateDirect(nodes * NODE_BYTES).order(ByteOrder.nativeOrder());
+  }
+
+  // record access
+
+  private static int offset(int node) {
+    return (node & CHUNK_MASK) * NODE_BYTES;
+  }
+
+  private static int readInt(ByteBuffer[] from, int node, int field) {
+    return from[node >>> CHUNK_SHIFT].getInt(offset(node) + field);
+  }
+
+  private int left(int node) {return readInt(chunks, node, LEFT);}
+  private int right(int node) {return readInt(chunks, node, RIGHT);}
+  private int size(int node) {return readInt(chunks, node, SIZE);}
+  private long key(int node) {return getLong(node, KEY);}
+  private boolean isRed(int node) {return readInt(chunks, node, COLOR) != 0;}
+
+  private void setLeft(int node, int child) {setInt(node, LEFT, child);}
+  private void setRight(int node, int child) {setInt(node, RIGHT, child);}
+  private void setSize(int node, int size) {setInt(node, SIZE, size);}
+  private void setRed(int node, boolean isRed) {setInt(node, COLOR, isRed ? 1 : 0);}
+
+  private void setInt(int node, int field, int value) {
+    chunks[node >>> CHUNK_SHIFT].putInt(offset(node) + field, value);
+  }
+
+  private long getLong(int node, int field) {
+    return chunks[node >>> CHUNK_SHIFT].getLong(offset(node) + field);
+  }
+
+  private void setLong(int node, int field, long value) {
+    chunks[node >>> CHUNK_SHIFT].putLong(offset(node) + field, value);
+  }
+}
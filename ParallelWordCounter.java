@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the words of a file on every core. The file is cut into byte
+ * ranges that end between tokens, each range is memory-mapped, tokenized
+ * and counted into its own hash table, each table becomes a tree (sorted once, then built in
+ * linear time with RedBlackTree.fromSorted), and the trees are merged
+ * pairwise with RedBlackTree.union as the fork-join tasks finish.
+ *
+ * Tokens follow WordFreqs2's rules: runs of [A-Za-z0-9'_], lowercased, with
+ * leading and trailing apostrophes trimmed. Those are all ASCII, so the
+ * tokenizer works on the raw bytes: any byte outside the set (including
+ * every byte of a multi-byte UTF-8 character) is a delimiter, which gives
+ * the same tokens as decoding first for UTF-8 or any other ASCII-based
+ * charset.
+ */
+public class ParallelWordCounter {
+
+  // how much of the file one task reads and counts on its own
+  private static final int CHUNK_SIZE = 1 << 24;
+
+  // which bytes can be part of a token
+  private static final boolean[] TOKEN_BYTE = new boolean[256];
+  static {
+    for(char c = 'A'; c <= 'Z'; c++) TOKEN_BYTE[c] = true;
+    for(char c = 'a'; c <= 'z'; c++) TOKEN_BYTE[c] = true;
+    for(char c = '0'; c <= '9'; c++) TOKEN_BYTE[c] = true;
+    TOKEN_BYTE['\''] = true;
+    TOKEN_BYTE['_'] = true;
+  }
+
+  /**
+   * Counts the words in a file using the common fork-join pool
+   *
+   * @param filename the file to read
+   * @return a tree from each word to its number of occurrences
+   * @throws IOException if the file can't be read
+   */
+  public static RedBlackTree<String, Integer> count(String filename) throws IOException {
+    return count(filename, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Counts the words in a file using the given pool
+   *
+   * @param filename the file to read
+   * @param pool where to run the counting tasks
+   * @return a tree from each word to its number of occurrences
+   * @throws IOException if the file can't be read
+   */
+  public static RedBlackTree<String, Integer> count(String filename, ForkJoinPool pool) throws IOException {
+    try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+      long[] boundaries = findBoundaries(channel);
+      try {
+        return pool.invoke(new CountTask(channel, boundaries, 0, boundaries.length - 1));
+      }
+      catch(UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Cuts the file into about CHUNK_SIZE pieces. Each cut is moved forward
+   * to the next delimiter byte, so no token is split between two chunks.
+   */
+  private static long[] findBoundaries(FileChannel channel) throws IOException {
+    long length = channel.size();
+    int chunks = (int) Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    long[] boundaries = new long[chunks + 1];
+    boundaries[chunks] = length;
+
+    ByteBuffer buffer = ByteBuffer.allocate(256);
+    for(int i = 1; i < chunks; i++) {
+      long cut = Math.max(length * i / chunks, boundaries[i - 1]);
+      // move forward until the byte at cut is a delimiter (or we hit the end)
+      search:
+      while(cut < length) {
+        buffer.clear();
+        int read = channel.read(buffer, cut);
+        if(read <= 0) break;
+        for(int j = 0; j < read; j++, cut++) {
+          if(!TOKEN_BYTE[buffer.get(j) & 0xFF]) break search;
+        }
+      }
+      boundaries[i] = cut;
+    }
+    return boundaries;
+  }
+
+  /**
+   * Counts chunks first to last - 1, splitting the range in half until only
+   * one chunk is left, then unions the two halves' trees.
+   */
+  private static class CountTask extends RecursiveTask<RedBlackTree<String, Integer>> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient FileChannel channel;
+    private final long[] boundaries;
+    private final int first;
+    private final int last;
+
+    private CountTask(FileChannel channel, long[] boundaries, int first, int last) {
+      this.channel = channel;
+      this.boundaries = boundaries;
+      this.first = first;
+      this.last = last;
+    }
+
+    @Override
+    protected RedBlackTree<String, Integer> compute() {
+      if(last - first == 1) return countChunk(channel, boundaries[first], boundaries[last]);
+
+      int middle = (first + last) >>> 1;
+      CountTask left = new CountTask(channel, boundaries, first, middle);
+      left.fork();
+      RedBlackTree<String, Integer> tree = new CountTask(channel, boundaries, middle, last).compute();
+      RedBlackTree<String, Integer> leftTree = left.join();
+      leftTree.union(tree, Integer::sum);
+      return leftTree;
+    }
+  }
+
+  /**
+   * Maps the bytes from start to end and counts their words, returning
+   * them as a tree. The loop reads the mapped bytes in place, lowercases
+   * each token into one reused buffer while hashing it, and bumps its
+   * count in a WordTable, so a token only allocates the first time its
+   * word shows up.
+   */
+  private static RedBlackTree<String, Integer> countChunk(FileChannel channel, long start, long end) {
+    MappedByteBuffer bytes;
+    try {
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+    catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    WordTable words = new WordTable();
+    byte[] word = new byte[64]; // the current token, lowercased
+    int length = bytes.limit();
+    int i = 0;
+    while(i < length) {
+      // skip delimiters, then find the end of the token
+      while(i < length && !TOKEN_BYTE[bytes.get(i) & 0xFF]) i++;
+      int tokenStart = i;
+      while(i < length && TOKEN_BYTE[bytes.get(i) & 0xFF]) i++;
+      int tokenEnd = i;
+
+      // remove leading/trailing apostrophes, and skip if it was just apostrophes
+      while(tokenStart < tokenEnd && bytes.get(tokenStart) == '\'') tokenStart++;
+      while(tokenEnd > tokenStart && bytes.get(tokenEnd - 1) == '\'') tokenEnd--;
+      if(tokenStart == tokenEnd) continue;
+
+      int wordLength = tokenEnd - tokenStart;
+      if(wordLength > word.length) word = new byte[Math.max(wordLength, word.length * 2)];
+      int hash = 0;
+      for(int j = 0; j < wordLength; j++) {
+        byte b = bytes.get(tokenStart + j);
+        if(b >= 'A' && b <= 'Z') b += 'a' - 'A';
+        word[j] = b;
+        hash = 31 * hash + b;
+      }
+      words.add(word, wordLength, hash);
+    }
+    return words.toTree();
+  }
+
+  /**
+   * Counts words by their lowercased bytes, in an open-addressing hash
+   * table with linear probing. The bytes of every distinct word go one
+   * after another into a shared arena, and their String is made once, when
+   * the word is first added.
+   */
+  private static class WordTable {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private int[] slots = new int[INITIAL_CAPACITY]; // word number + 1, or 0 if empty
+    private int[] hashes = new int[INITIAL_CAPACITY]; // the hash of each slot's word
+    private int size; // number of distinct words
+
+    // per word, in the order they were first added
+    private int[] offsets = new int[INITIAL_CAPACITY / 2]; // where its bytes start in arena
+    private int[] lengths = new int[INITIAL_CAPACITY / 2];
+    private int[] counts = new int[INITIAL_CAPACITY / 2];
+    private String[] strings = new String[INITIAL_CAPACITY / 2];
+    private byte[] arena = new byte[INITIAL_CAPACITY * 8];
+    private int arenaUsed;
+
+    // adds one occurrence of the first length bytes of word
+    private void add(byte[] word, int length, int hash) {
+      hash ^= hash >>> 16; // spread the high bits into the mask
+      int mask = slots.length - 1;
+      for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int entry = slots[slot] - 1;
+        if(entry < 0) {
+          insert(slot, word, length, hash);
+          return;
+        }
+        if(hashes[slot] == hash && Arrays.equals(arena, offsets[entry], offsets[entry] + lengths[entry], word, 0, length)) {
+          counts[entry]++;
+          return;
+        }
+      }
+    }
+
+    private void insert(int slot, byte[] word, int length, int hash) {
+      if(size == counts.length) {
+        int capacity = size * 2;
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+      }
+      if(arenaUsed + length > arena.length) arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaUsed + length));
+
+      System.arraycopy(word, 0, arena, arenaUsed, length);
+      offsets[size] = arenaUsed;
+      lengths[size] = length;
+      counts[size] = 1;
+      strings[size] = new String(word, 0, length, StandardCharsets.ISO_8859_1);
+      arenaUsed += length;
+
+      slots[slot] = size + 1;
+      hashes[slot] = hash;
+      size++;
+      if(size * 2 > slots.length) rehash(); // keep the table at most half full
+    }
+
+    private void rehash() {
+      int[] oldSlots = slots;
+      int[] oldHashes = hashes;
+      slots = new int[oldSlots.length * 2];
+      hashes = new int[oldSlots.length * 2];
+      int mask = slots.length - 1;
+      for(int i = 0; i < oldSlots.length; i++) {
+        if(oldSlots[i] == 0) continue;
+        int slot = oldHashes[i] & mask;
+        while(slots[slot] != 0) slot = (slot + 1) & mask;
+        slots[slot] = oldSlots[i];
+        hashes[slot] = oldHashes[i];
+      }
+    }
+
+    // sorts the words once and builds the tree in linear time
+    private RedBlackTree<String, Integer> toTree() {
+      Integer[] order = new Integer[size];
+      for(int i = 0; i < size; i++) order[i] = i;
+      Arrays.sort(order, (a, b) -> strings[a].compareTo(strings[b]));
+
+      String[] keys = new String[size];
+      Integer[] values = new Integer[size];
+      for(int i = 0; i < size; i++) {
+        keys[i] = strings[order[i]];
+        values[i] = counts[order[i]];
+      }
+      return RedBlackTree.fromSorted(keys, values);
+    }
+  }
+}
@@ -0,0 +1,609 @@
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * A red black tree whose versions can be kept. snapshot() hands back a
+ * frozen copy in O(1): both trees share every node, and the live tree just
+ * moves on to a new epoch. A node belongs to the epoch that made it, and a
+ * write only changes nodes of its own tree's current epoch in place - any
+ * older node on its way gets copied first. So a put or delete copies at most
+ * the O(log n) nodes it touches, only the first time after each snapshot,
+ * and nothing a snapshot can reach ever changes again.
+ *
+ * A snapshot is read-only and safe to read from any number of threads with
+ * no locking while the live tree keeps changing, as long as it was handed
+ * over safely (through a volatile field, a concurrent queue, a thread start
+ * and so on). The live tree itself is single-threaded like RedBlackTree.
+ */
+public class PersistentRedBlackTree<K extends Comparable<K>,V> implements Iterable<Map.Entry<K,V>> {
+
+  // hands out epochs, so no two trees ever share one
+  private static final AtomicLong EPOCHS = new AtomicLong();
+
+  // a red black tree with n < 2^31 nodes is at most 2*lg(n+1) < 64 levels tall
+  private static final int MAX_HEIGHT = 64;
+
+  private Node<K,V> root; // our root node
+  private long epoch; // nodes made in this epoch may be changed in place
+  private final boolean frozen; // snapshots can't be changed
+
+  // the nodes from the root down to where the last ownPath stopped, all ours (null for snapshots)
+  private final Node<K,V>[] path;
+  private final boolean[] pathLeft; // whether path[i + 1] (or the new node) is path[i]'s left child
+  private int pathLength;
+
+  private static final class Node<K,V> {
+    private boolean isRed;
+    private Node<K,V> left;
+    private Node<K,V> right;
+    private int subtreeSize;
+    private K key;
+    private V value;
+    private final long epoch; // the epoch that made this node
+
+    private Node(K key, V value, int size, boolean isRed, long epoch) {
+      this.key = key;
+      this.value = value;
+      this.subtreeSize = size;
+      this.isRed = isRed;
+      this.epoch = epoch;
+    }
+  }
+
+
+  /**
+   * Creates an empty tree
+   */
+  public PersistentRedBlackTree() {
+    this(null, false);
+  }
+
+  @SuppressWarnings("unchecked")
+  private PersistentRedBlackTree(Node<K,V> root, boolean frozen) {
+    this.root = root;
+    this.frozen = frozen;
+    this.epoch = EPOCHS.incrementAndGet();
+    this.path = frozen ? null : (Node<K,V>[]) new Node<?,?>[MAX_HEIGHT];
+    this.pathLeft = frozen ? null : new boolean[MAX_HEIGHT];
+  }
+
+  /**
+   * Returns a read-only copy of the tree as it is now. This is O(1): the
+   * copy shares all of the nodes, and this tree copies whatever it changes
+   * from now on.
+   *
+   * @return the frozen copy
+   */
+  public PersistentRedBlackTree<K,V> snapshot() {
+    if(frozen) return this; // it can't change anyway
+    PersistentRedBlackTree<K,V> snapshot = new PersistentRedBlackTree<>(root, true);
+    epoch = EPOCHS.incrementAndGet(); // everything reachable now belongs to the snapshot too
+    return snapshot;
+  }
+
+  /**
+   * Returns true if this is a snapshot, which can't be changed
+   *
+   * @return
+   */
+  public boolean isSnapshot() {
+    return frozen;
+  }
+
+  /**
+   * Adds or updates a key-value pair
+   *
+   * @param key
+   * @param value
+   */
+  public void put(K key, V value) {
+    checkWritable();
+    Node<K,V> node = ownPath(key);
+    if(node != null) {
+      node.value = value; // nothing else changes
+      clearPath();
+    }
+    else addBelowPath(key, value);
+  }
+
+  /**
+   * Same as RedBlackTree.merge: puts value if the key is absent, otherwise
+   * replaces the value with remappingFunction(old value, value), removing
+   * the key if that's null. Adding or updating is one descent; removing
+   * (which is rare for counters) goes on to the regular delete.
+   *
+   * @param key
+   * @param value
+   * @param remappingFunction
+   * @return the new value, or null if the key is now absent
+   */
+  public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    checkWritable();
+    Node<K,V> node = ownPath(key);
+    if(node == null) {
+      addBelowPath(key, value);
+      return value;
+    }
+    clearPath();
+    V newValue = remappingFunction.apply(node.value, value);
+    if(newValue == null) delete(key);
+    else node.value = newValue;
+    return newValue;
+  }
+
+  /**
+   * Walks down to the key, owning every node on the way (the copies are
+   * linked in as we go), and leaves them on path. Returns the node with the
+   * key, or null if it isn't present.
+   */
+  private Node<K,V> ownPath(K key) {
+    pathLength = 0;
+    root = own(root);
+    Node<K,V> node = root;
+    while(node != null) {
+      int compare = key.compareTo(node.key);
+      if(compare == 0) return node;
+
+      path[pathLength] = node;
+      pathLeft[pathLength++] = compare < 0;
+      Node<K,V> child = own(compare < 0 ? node.left : node.right);
+      if(compare < 0) node.left = child;
+      else node.right = child;
+      node = child;
+    }
+    return null;
+  }
+
+  // hangs a new red node where ownPath stopped and rebalances back up to the root
+  private void addBelowPath(K key, V value) {
+    Node<K,V> node = new Node<>(key, value, 1, true, epoch);
+    for(int i = pathLength - 1; i >= 0; i--) {
+      Node<K,V> parent = path[i];
+      if(pathLeft[i]) parent.left = node;
+      else parent.right = node;
+      node = balance(parent);
+    }
+    clearPath();
+    root = node;
+    root.isRed = false; // make sure the root is black
+  }
+
+  private void clearPath() {
+    Arrays.fill(path, 0, pathLength, null); // don't keep old nodes reachable
+    pathLength = 0;
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value.
+   * Returns null if the key wasn't present.
+   *
+   * @param key
+   * @return
+   */
+  public V delete(K key) {
+    checkWritable();
+    Node<K,V> node = findNode(key);
+    if(node == null) return null;
+    V value = node.value;
+
+    root = own(root);
+    // make the root red if both children are black, so there's a red node to push down
+    if(!isRed(root.left) && !isRed(root.right)) root.isRed = true;
+    root = delete(root, key);
+    if(root != null) root.isRed = false;
+    return value;
+  }
+
+  // removes key, which must be present, from the subtree at node (which we own)
+  private Node<K,V> delete(Node<K,V> node, K key) {
+    if(key.compareTo(node.key) < 0) {
+      if(!isRed(node.left) && !isRed(node.left.left)) node = moveRedLeft(node);
+      node.left = delete(own(node.left), key);
+    }
+    else {
+      if(isRed(node.left)) node = rotateRight(node);
+      if(key.compareTo(node.key) == 0 && node.right == null) return null;
+      if(!isRed(node.right) && !isRed(node.right.left)) node = moveRedRight(node);
+
+      if(key.compareTo(node.key) == 0) {
+        // swap in the successor's pair and delete the successor instead
+        Node<K,V> successor = findMinNode(node.right);
+        node.key = successor.key;
+        node.value = successor.value;
+        node.right = deleteMin(own(node.right));
+      }
+      else node.right = delete(own(node.right), key);
+    }
+    return balance(node);
+  }
+
+  private Node<K,V> deleteMin(Node<K,V> node) {
+    if(node.left == null) return null;
+    if(!isRed(node.left) && !isRed(node.left.left)) node = moveRedLeft(node);
+    node.left = deleteMin(own(node.left));
+    return balance(node);
+  }
+
+  // make node.left or one of its children red, borrowing from the right if we can
+  private Node<K,V> moveRedLeft(Node<K,V> node) {
+    colorFlip(node);
+    if(isRed(node.right.left)) {
+      node.right = rotateRight(node.right);
+      node = rotateLeft(node);
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  // make node.right or one of its children red, borrowing from the left if we can
+  private Node<K,V> moveRedRight(Node<K,V> node) {
+    colorFlip(node);
+    if(isRed(node.left.left)) {
+      node = rotateRight(node);
+      colorFlip(node);
+    }
+    return node;
+  }
+
+  /**
+   * Returns the corresponding value to the given key or null if key
+   * is not present.
+   *
+   * @param key
+   * @return
+   */
+  public V get(K key) {
+    Node<K,V> node = findNode(key);
+    return node == null ? null : node.value;
+  }
+
+  /**
+   * Returns true if the key is present
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(K key) {
+    return findNode(key) != null;
+  }
+
+  private Node<K,V> findNode(K key) {
+    Node<K,V> currentNode = root;
+    while(currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare < 0) currentNode = currentNode.left;
+      else if(compare > 0) currentNode = currentNode.right;
+      else return currentNode;
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the tree is empty
+   *
+   * @return
+   */
+  public boolean isEmpty() {return root == null;}
+
+  /**
+   * Returns the number of nodes in the tree
+   *
+   * @return
+   */
+  public int size() {return size(root);}
+
+  /**
+   * Returns an iterator over the entries in key order, as they are now. On
+   * the live tree it takes a snapshot first, so the tree can keep changing
+   * while the iterator walks the old version.
+   *
+   * @return
+   */
+  @Override
+  public Iterator<Map.Entry<K,V>> iterator() {
+    Node<K,V> start = snapshot().root;
+    return new Iterator<>() {
+      private final ArrayDeque<Node<K,V>> stack = new ArrayDeque<>(); // the nodes we went left at
+      {pushLeftSpine(start);}
+
+      private void pushLeftSpine(Node<K,V> node) {
+        for(; node != null; node = node.left) stack.push(node);
+      }
+
+      public boolean hasNext() {return !stack.isEmpty();}
+
+      public Map.Entry<K,V> next() {
+        if(stack.isEmpty()) throw new NoSuchElementException();
+        Node<K,V> node = stack.pop();
+        pushLeftSpine(node.right);
+        return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+      }
+    };
+  }
+
+  /**
+   * Returns the smallest key, or null if the tree is empty
+   *
+   * @return
+   */
+  public K findFirstKey() {
+    Node<K,V> node = findMinNode(root);
+    return node == null ? null : node.key;
+  }
+
+  /**
+   * Returns the largest key, or null if the tree is empty
+   *
+   * @return
+   */
+  public K findLastKey() {
+    Node<K,V> node = root;
+    while(node != null && node.right != null) node = node.right;
+    return node == null ? null : node.key;
+  }
+
+  private Node<K,V> findMinNode(Node<K,V> node) {
+    while(node != null && node.left != null) node = node.left;
+    return node;
+  }
+
+  /**
+   * Same as RedBlackTree.findPredecessor: returns the key before the given
+   * one, or null if the key isn't present or is the first. Use lowerKey for
+   * keys that might not be present.
+   *
+   * @param key
+   * @return
+   */
+  public K findPredecessor(K key) {
+    Node<K,V> currentNode = root;
+    K predecessor = null; // the most recent ancestor we went right at
+    while(currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare < 0) currentNode = currentNode.left;
+      else if(compare > 0) {
+        predecessor = currentNode.key;
+        currentNode = currentNode.right;
+      }
+      else {
+        // travel left once, then right as much as possible
+        Node<K,V> node = currentNode.left;
+        if(node == null) return predecessor;
+        while(node.right != null) node = node.right;
+        return node.key;
+      }
+    }
+    return null; // the key doesn't exist
+  }
+
+  /**
+   * Same as RedBlackTree.findSuccessor: returns the key after the given
+   * one, or null if the key isn't present or is the last. Use higherKey for
+   * keys that might not be present.
+   *
+   * @param key
+   * @return
+   */
+  public K findSuccessor(K key) {
+    Node<K,V> currentNode = root;
+    K successor = null; // the most recent ancestor we went left at
+    while(currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare > 0) currentNode = currentNode.right;
+      else if(compare < 0) {
+        successor = currentNode.key;
+        currentNode = currentNode.left;
+      }
+      else {
+        // travel right once, then left as much as possible
+        Node<K,V> node = findMinNode(currentNode.right);
+        return node == null ? successor : node.key;
+      }
+    }
+    return null; // the key doesn't exist
+  }
+
+  /**
+   * Returns the greatest key strictly less than the given one, or null if
+   * there is none. The key doesn't have to be in the tree.
+   *
+   * @param key
+   * @return
+   */
+  public K lowerKey(K key) {
+    Node<K,V> currentNode = root;
+    K lower = null;
+    while(currentNode != null) {
+      if(key.compareTo(currentNode.key) > 0) {
+        lower = currentNode.key;
+        currentNode = currentNode.right;
+      }
+      else currentNode = currentNode.left;
+    }
+    return lower;
+  }
+
+  /**
+   * Returns the least key strictly greater than the given one, or null if
+   * there is none. The key doesn't have to be in the tree.
+   *
+   * @param key
+   * @return
+   */
+  public K higherKey(K key) {
+    Node<K,V> currentNode = root;
+    K higher = null;
+    while(currentNode != null) {
+      if(key.compareTo(currentNode.key) < 0) {
+        higher = currentNode.key;
+        currentNode = currentNode.left;
+      }
+      else currentNode = currentNode.right;
+    }
+    return higher;
+  }
+
+  /**
+   * Returns the rank of the key (how many keys are smaller), or -1 if it
+   * isn't present
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(K key) {
+    Node<K,V> currentNode = root;
+    int rank = 0;
+    while(currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare < 0) currentNode = currentNode.left;
+      else if(compare > 0) {
+        rank += size(currentNode.left) + 1;
+        currentNode = currentNode.right;
+      }
+      else return rank + size(currentNode.left);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank
+   *
+   * @param rank
+   * @return
+   */
+  public K select(int rank) {
+    if(rank < 0 || rank >= size()) throw new IllegalArgumentException("Rank is out of bounds!");
+
+    Node<K,V> node = root;
+    while(true) {
+      int size = size(node.left);
+      if(rank < size) node = node.left;
+      else if(rank == size) return node.key;
+      else {
+        rank -= size + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of red nodes in the tree
+   *
+   * @return
+   */
+  public int countRedNodes() {return countRedNodes(root);}
+
+  private int countRedNodes(Node<K,V> node) {
+    if(node == null) return 0;
+    return (node.isRed ? 1 : 0) + countRedNodes(node.left) + countRedNodes(node.right);
+  }
+
+  /**
+   * Returns the height of the tree, where an empty tree has height 0 (the
+   * same as RedBlackTree)
+   *
+   * @return
+   */
+  public int calcHeight() {return calcHeight(root);}
+
+  private int calcHeight(Node<K,V> node) {
+    if(node == null) return 0;
+    return Math.max(calcHeight(node.left), calcHeight(node.right)) + 1;
+  }
+
+  /**
+   * Returns the black height of the tree, or 0 for an empty tree
+   *
+   * @return
+   */
+  public int calcBlackHeight() {
+    int blackHeight = 0;
+    for(Node<K,V> node = root; node != null; node = node.left) {
+      if(!node.isRed) blackHeight++;
+    }
+    return blackHeight;
+  }
+
+  /**
+   * Returns the average distance of the nodes from the root. Empty trees
+   * return NaN.
+   *
+   * @return
+   */
+  public double calcAverageDepth() {
+    return (double) calcTotalDepth(root, 0) / size();
+  }
+
+  private long calcTotalDepth(Node<K,V> node, int depth) {
+    if(node == null) return 0;
+    return depth + calcTotalDepth(node.left, depth + 1) + calcTotalDepth(node.right, depth + 1);
+  }
+
+  private void checkWritable() {
+    if(frozen) throw new UnsupportedOperationException("Snapshots can't be changed!");
+  }
+
+  // returns node itself if this epoch made it, otherwise a copy we can change
+  private Node<K,V> own(Node<K,V> node) {
+    if(node == null || node.epoch == epoch) return node;
+    Node<K,V> copy = new Node<>(node.key, node.value, node.subtreeSize, node.isRed, epoch);
+    copy.left = node.left;
+    copy.right = node.right;
+    return copy;
+  }
+
+  // fix the subtree at node (which we own) on the way back up
+  private Node<K,V> balance(Node<K,V> node) {
+    node.subtreeSize = size(node.left) + size(node.right) + 1; // the rotations copy it
+    if(isRed(node.right) && !isRed(node.left)) node = rotateLeft(node);
+    if(isRed(node.left) && isRed(node.left.left)) node = rotateRight(node);
+    if(isRed(node.left) && isRed(node.right)) colorFlip(node);
+    return node;
+  }
+
+  // the rotations and the flip take a node we own, and own whatever else they change
+
+  private Node<K,V> rotateLeft(Node<K,V> oldRoot) {
+    Node<K,V> newRoot = own(oldRoot.right);
+    oldRoot.right = newRoot.left;
+    newRoot.left = oldRoot;
+    newRoot.isRed = oldRoot.isRed;
+    oldRoot.isRed = true;
+    newRoot.subtreeSize = oldRoot.subtreeSize;
+    oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+    return newRoot;
+  }
+
+  private Node<K,V> rotateRight(Node<K,V> oldRoot) {
+    Node<K,V> newRoot = own(oldRoot.left);
+    oldRoot.left = newRoot.right;
+    newRoot.right = oldRoot;
+    newRoot.isRed = oldRoot.isRed;
+    oldRoot.isRed = true;
+    newRoot.subtreeSize = oldRoot.subtreeSize;
+    oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+    return newRoot;
+  }
+
+  private void colorFlip(Node<K,V> parent) {
+    parent.left = own(parent.left);
+    parent.right = own(parent.right);
+    parent.isRed = !parent.isRed;
+    parent.left.isRed = !parent.left.isRed;
+    parent.right.isRed = !parent.right.isRed;
+  }
+
+  private boolean isRed(Node<K,V> node) {
+    return node != null && node.isRed;
+  }
+
+  private int size(Node<K,V> node) {
+    return node == null ? 0 : node.subtreeSize;
+  }
+}
@@ -1,92 +1,1322 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * RedBlackTree 
  * 
  * @author Sumneet Brar
  */
-public class RedBlackTree<K extends Comparable<K>,V>{
+public class RedBlackTree<K extends Comparable<K>,V> implements Iterable<Map.Entry<K,V>> {
+
+  // a red black tree with n < 2^31 nodes is at most 2*lg(n+1) < 64 levels tall
+  private static final int MAX_HEIGHT = 64;
+
+  // combined sizes below which the parallel set operations stop forking
+  private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+  // the most nodes a subtree of black height b can hold, 3^b - 1 (all 3-nodes)
+  private static final long[] MAX_SUBTREE_SIZE = new long[33];
+  static {
+    for(long b = 0, power = 1; b < MAX_SUBTREE_SIZE.length; b++, power *= 3) MAX_SUBTREE_SIZE[(int) b] = power - 1;
+  }
+
+  private Node root; // our root node
+  private Node first; // the node with the smallest key, or null if empty
+  private Node last; // the node with the largest key, or null if empty
+
+  // the nodes from the root down to where the last findPath stopped - reused so
+  // insert and delete can walk back up without recursing or allocating
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final Node[] path = (Node[]) new RedBlackTree.Node[MAX_HEIGHT];
+  private int pathLength; // number of nodes on path
+  private int pathCompare; // how the key compared to the last node on path
+
+  private int modCount; // bumped whenever a key is added or removed, so iterators can tell
+
+  // how many nodes stats() looks at in a tree too big to measure exactly
+  private static final int STATS_SAMPLES = 1024;
+  // the last snapshot and the modCount it's right for, in one volatile field so readers sharing a lock can all cache it
+  private volatile CachedStats cachedStats;
+
+  // sums up the values of every subtree (in Node.aggregate), or null if we don't keep one
+  private final Monoid<? super V, Object> monoid;
+
+  // every (value, key) pair ordered by value then key, or null if values aren't indexed
+  private RedBlackTree<ValueKey, Boolean> valueIndex;
+  private Comparator<? super V> valueOrder; // nulls first
+
+  // node class - the nodes are also the entries handed out by the iterators
+  private class Node implements Map.Entry<K,V> {
+
+    private boolean isRed;
+    private Node left = null;
+    private Node right = null;
+    private int subtreeSize = 0;
+    private Object aggregate; // the monoid's summary of this subtree, if the tree has a monoid
+    private K key;
+    private V value;
+
+    private Node(K key, V value, int size, boolean isRed) {
+      this.isRed = isRed;
+      this.key = key;
+      this.value = value;
+      this.subtreeSize = size;
+    }
+
+    @Override
+    public K getKey() {return key;}
+
+    @Override
+    public V getValue() {return value;}
+
+    @Override
+    public V setValue(V value) {
+      throw new UnsupportedOperationException("Use put to change a value!");
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if(!(object instanceof Map.Entry)) return false;
+      Map.Entry<?,?> entry = (Map.Entry<?,?>) object;
+      return Objects.equals(key, entry.getKey()) && Objects.equals(value, entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(key) ^ Objects.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+
+  /**
+   * This constructor creates an empty red black tree:
+   * Just creates a null root. 
+   */
+  public RedBlackTree() {
+    root = null;
+    monoid = null;
+  }
+
+  /**
+   * Creates an empty red black tree that keeps the given monoid's summary
+   * of every subtree, so aggregate can answer range queries in O(log n).
+   * Keeping it up to date costs one combine per node that an insert or
+   * delete touches.
+   * 
+   * @param monoid how to sum up values
+   */
+  @SuppressWarnings("unchecked")
+  public RedBlackTree(Monoid<? super V, ?> monoid) {
+    root = null;
+    this.monoid = (Monoid<? super V, Object>) monoid;
+  }
+
+  /**
+   * This method inserts a new key value pair into the tree. 
+   * It assumes that neither the given key nor value are null.
+   * 
+   * 
+   * @param key given key to add
+   * @param value given value to add
+   */
+  public void put(K key, V value) {
+    Node node = findPath(key);
+    // if we find a key with an equal key, replace its value with the given value - nothing else changes
+    if(node != null) {
+      reindexValue(node.key, node.value, value);
+      node.value = value;
+      updatePathAggregates(node);
+    }
+    else addBelowPath(new Node(key, value, 1, true));
+  }
+
+  /**
+   * Walks down from the root looking for the key, remembering every node it
+   * passes in path. If the key isn't found, the last node on path is the
+   * parent the key should hang from, on the pathCompare side.
+   * 
+   * @param key given key to look for
+   * @return the node with the key, or null if it isn't present
+   */
+  private Node findPath(K key) {
+    Node currentNode = root;
+    pathLength = 0;
+
+    while(currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare == 0) return currentNode;
+
+      path[pathLength++] = currentNode;
+      pathCompare = compare;
+      currentNode = compare < 0 ? currentNode.left : currentNode.right;
+    }
+    return null;
+  }
+
+  /**
+   * Hangs a new red node where the last findPath fell off the tree, then
+   * walks back up path fixing any issues. Once two levels in a row need no
+   * fixing, nothing above can need it either, so from there on we only
+   * update subtree sizes.
+   * 
+   * @param node the new node
+   */
+  private void addBelowPath(Node node) {
+    modCount++;
+    updateAggregate(node);
+    if(valueIndex != null) valueIndex.put(new ValueKey(node.value, node.key, 0), Boolean.TRUE);
+    if(pathLength == 0) {
+      root = node;
+      root.isRed = false; // make sure the root is black
+      first = node;
+      last = node;
+      return;
+    }
+
+    Node parent = path[pathLength - 1];
+    if(pathCompare < 0) parent.left = node;
+    else parent.right = node;
+
+    // a new smallest key can only go left of the old smallest (same for largest)
+    if(parent == first && pathCompare < 0) first = node;
+    if(parent == last && pathCompare > 0) last = node;
+
+    int quietLevels = 0; // the new node counts as a change
+    for(int i = pathLength - 1; i >= 0; i--) {
+      Node top = path[i];
+      top.subtreeSize++; // one more node below us (rotations keep this right)
+      updateAggregate(top);
+      if(quietLevels >= 2) continue;
+
+      boolean wasRed = top.isRed;
+      Node fixed = top;
+
+      // we might end up with a red node that's the right child of a black node, rotate left
+      if(isRed(fixed.right) && !isRed(fixed.left)) fixed = rotateLeft(fixed);
+      // we might end up with a red node being the child of another red node, rotate right
+      if(isRed(fixed.left) && isRed(fixed.left.left)) fixed = rotateRight(fixed);
+      // we have 2 red children of a black node, colorFlip!
+      if(isRed(fixed.left) && isRed(fixed.right)) colorFlip(fixed);
+
+      if(fixed != top) replaceChild(i, top, fixed);
+      if(fixed == top && fixed.isRed == wasRed) quietLevels++;
+      else quietLevels = 0;
+    }
+    root.isRed = false; // make sure the root is black
+  }
+
+  /**
+   * Puts replacement where old used to hang: under path[i - 1], or at the
+   * root if i is 0.
+   * 
+   * @param i old's position on path
+   * @param old the node being replaced
+   * @param replacement the node taking its place (may be null)
+   */
+  private void replaceChild(int i, Node old, Node replacement) {
+    if(i == 0) root = replacement;
+    else if(path[i - 1].left == old) path[i - 1].left = replacement;
+    else path[i - 1].right = replacement;
+  }
+
+  /**
+   * Associates the key with the result of the remapping function, doing
+   * the lookup and the insert in one descent. The function gets the current
+   * value, or null if the key isn't present. If it returns null, the key is
+   * removed (or not added).
+   * 
+   * @param key given key to update
+   * @param remappingFunction computes the new value from the key and old value
+   * @return the new value, or null if there is none
+   */
+  public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return compute(key, remappingFunction, false);
+  }
+
+  /**
+   * Does the compute, returning either the new value or the old one
+   * 
+   * @param key given key to update
+   * @param remappingFunction computes the new value from the key and old value
+   * @param returnPrevious whether to return the old value instead of the new one
+   * @return the new or old value, or null if there is none
+   */
+  private V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction, boolean returnPrevious) {
+    Node node = findPath(key);
+
+    // we've reached the bottom without finding the key - add it if the function gives us a value
+    if(node == null) {
+      V value = remappingFunction.apply(key, null);
+      if(value != null) addBelowPath(new Node(key, value, 1, true));
+      return returnPrevious ? null : value;
+    }
+
+    // found the key - update it in place
+    V previous = node.value;
+    V value = remappingFunction.apply(key, previous);
+    if(value != null) {
+      reindexValue(node.key, previous, value);
+      node.value = value;
+      updatePathAggregates(node);
+    }
+    // removing is rare (counters only go up), so just use the regular delete path
+    else delete(key);
+    return returnPrevious ? previous : value;
+  }
+
+  /**
+   * If the key isn't present, adds it with the given value. Otherwise replaces
+   * its value with remappingFunction(oldValue, value), or removes the key if
+   * that returns null. One descent either way - e.g. merge(word, 1, Integer::sum)
+   * counts a word.
+   * 
+   * @param key given key to update
+   * @param value value to add, or to combine with the old one
+   * @param remappingFunction combines the old value with the given one
+   * @return the new value, or null if the key was removed
+   */
+  public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    return compute(key, (k, oldValue) -> oldValue == null ? value : remappingFunction.apply(oldValue, value));
+  }
+
+  /**
+   * Returns the key's value, first adding mappingFunction(key) if the key
+   * isn't present (unless that returns null).
+   * 
+   * @param key given key to look up
+   * @param mappingFunction computes a value for a missing key
+   * @return the existing or newly added value
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    return compute(key, (k, oldValue) -> oldValue != null ? oldValue : mappingFunction.apply(k));
+  }
+
+  /**
+   * Adds the key-value pair only if the key isn't already present.
+   * 
+   * @param key given key to add
+   * @param value given value to add
+   * @return the value already there, or null if the pair was added
+   */
+  public V putIfAbsent(K key, V value) {
+    return compute(key, (k, oldValue) -> oldValue != null ? oldValue : value, true);
+  }
+
+  /**
+   * Builds a tree from entries that are already sorted by key, in linear
+   * time: no comparisons beyond checking the order, and no rotations.
+   * 
+   * @param keys the keys, strictly increasing
+   * @param values the values, matching keys
+   * @return a balanced tree holding the pairs
+   */
+  public static <K extends Comparable<K>,V> RedBlackTree<K,V> fromSorted(K[] keys, V[] values) {
+    if(keys.length != values.length) throw new IllegalArgumentException("There must be one value per key!");
+
+    RedBlackTree<K,V> tree = new RedBlackTree<>();
+    Iterator<RedBlackTree<K,V>.Node> nodes = new Iterator<>() {
+      private int i = 0;
+      public boolean hasNext() {return i < keys.length;}
+      public RedBlackTree<K,V>.Node next() {
+        i++;
+        return tree.new Node(keys[i - 1], values[i - 1], 1, false);
+      }
+    };
+    tree.root = tree.new Builder(nodes).build(keys.length);
+    tree.refreshEnds();
+    return tree;
+  }
+
+  /**
+   * Builds a tree from the first size entries of a sorted iterator, in
+   * linear time. The iterator is read one entry at a time, so the entries
+   * never all need to be in memory twice.
+   * 
+   * @param entries the pairs, in strictly increasing key order
+   * @param size how many pairs to take
+   * @return a balanced tree holding the pairs
+   */
+  public static <K extends Comparable<K>,V> RedBlackTree<K,V> fromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, int size) {
+    RedBlackTree<K,V> tree = new RedBlackTree<>();
+    Iterator<RedBlackTree<K,V>.Node> nodes = new Iterator<>() {
+      public boolean hasNext() {return entries.hasNext();}
+      public RedBlackTree<K,V>.Node next() {
+        Map.Entry<? extends K, ? extends V> entry = entries.next();
+        return tree.new Node(entry.getKey(), entry.getValue(), 1, false);
+      }
+    };
+    tree.root = tree.new Builder(nodes).build(size);
+    tree.refreshEnds();
+    return tree;
+  }
+
+  /**
+   * Inserts a batch of pairs that is sorted by key, replacing the values of
+   * keys that are already present. A small batch goes in with regular puts;
+   * a batch big enough that n puts would cost more than a rebuild is merged
+   * with the tree's entries and rebuilt in O(n + m), reusing the old nodes.
+   * 
+   * @param keys the keys, strictly increasing
+   * @param values the values, matching keys
+   */
+  public void putAll(K[] keys, V[] values) {
+    if(keys.length != values.length) throw new IllegalArgumentException("There must be one value per key!");
+    for(int i = 1; i < keys.length; i++) {
+      if(keys[i - 1].compareTo(keys[i]) >= 0) throw new IllegalArgumentException("Keys must be sorted and distinct!");
+    }
+
+    int n = size();
+    int m = keys.length;
+
+    // m puts cost about m*lg(n), a rebuild about n + m
+    if((long) m * (32 - Integer.numberOfLeadingZeros(n)) < n) {
+      for(int i = 0; i < m; i++) put(keys[i], values[i]);
+      return;
+    }
+
+    // first pass: count the keys we already have, so we know the new size
+    int shared = 0;
+    Iterator<Node> existing = inOrderNodes();
+    Node node = existing.hasNext() ? existing.next() : null;
+    for(int i = 0; i < m && node != null; ) {
+      int compare = keys[i].compareTo(node.key);
+      if(compare <= 0) i++;
+      if(compare >= 0) node = existing.hasNext() ? existing.next() : null;
+      if(compare == 0) shared++;
+    }
+
+    // second pass: merge the batch into the old nodes and build from that
+    Iterator<Node> oldNodes = inOrderNodes();
+    Iterator<Node> merged = new Iterator<>() {
+      private Node pending = oldNodes.hasNext() ? oldNodes.next() : null;
+      private int i = 0;
+
+      public boolean hasNext() {return pending != null || i < m;}
+
+      public Node next() {
+        // a batch key that comes first gets a new node
+        if(i < m && (pending == null || keys[i].compareTo(pending.key) < 0)) {
+          i++;
+          if(valueIndex != null) valueIndex.put(new ValueKey(values[i - 1], keys[i - 1], 0), Boolean.TRUE);
+          return new Node(keys[i - 1], values[i - 1], 1, false);
+        }
+        // otherwise reuse the old node, with the batch's value if the keys match
+        Node oldNode = pending;
+        pending = oldNodes.hasNext() ? oldNodes.next() : null;
+        if(i < m && keys[i].compareTo(oldNode.key) == 0) {
+          reindexValue(oldNode.key, oldNode.value, values[i]);
+          oldNode.value = values[i++];
+        }
+        return oldNode;
+      }
+    };
+    root = new Builder(merged).build(n + m - shared);
+    refreshEnds();
+    modCount++;
+  }
+
+  /**
+   * Returns the nodes in key order. Each node's right child is read before
+   * the node is handed out, and its left subtree has been handed out already,
+   * so the caller may relink a node as soon as it gets it (that's how
+   * putAll reuses nodes).
+   * 
+   * @return an iterator over the nodes
+   */
+  private Iterator<Node> inOrderNodes() {
+    return new Iterator<>() {
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      private final Node[] stack = (Node[]) new RedBlackTree.Node[MAX_HEIGHT];
+      private int depth = pushLeftSpine(root, 0);
+
+      public boolean hasNext() {return depth > 0;}
+
+      public Node next() {
+        if(depth == 0) throw new NoSuchElementException();
+        Node node = stack[--depth];
+        depth = pushLeftSpine(node.right, depth);
+        return node;
+      }
+
+      private int pushLeftSpine(Node node, int depth) {
+        while(node != null) {
+          stack[depth++] = node;
+          node = node.left;
+        }
+        return depth;
+      }
+    };
+  }
+
+  /**
+   * Builds a tree from nodes handed over in key order. It picks the black
+   * height that fits n, then splits every subtree into either a black node
+   * with two children (a 2-node) or a black node with a red left child (a
+   * 3-node), keeping the pieces as even as possible. A subtree of black
+   * height b can hold 2^b - 1 to 3^b - 1 nodes, so the pieces always fit.
+   */
+  private class Builder {
+    private final Iterator<Node> nodes;
+    private K lastKey; // key of the last node taken, to check the order
+
+    private Builder(Iterator<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    // builds the whole tree
+    private Node build(int n) {
+      if(n < 0) throw new IllegalArgumentException("Size can't be negative!");
+      int blackHeight = 63 - Long.numberOfLeadingZeros(n + 1L); // the most that fits: 2^b - 1 <= n
+      Node top = build(n, blackHeight);
+      if(nodes.hasNext()) throw new IllegalArgumentException("There are more entries than the given size!");
+      return top;
+    }
+
+    // builds a subtree of n nodes whose root is black and has the given black height
+    private Node build(int n, int blackHeight) {
+      if(n == 0) return null;
+
+      // a 2-node if the two halves fit under it
+      if(n - 1 <= 2 * MAX_SUBTREE_SIZE[blackHeight - 1]) {
+        int leftSize = n / 2;
+        Node left = build(leftSize, blackHeight - 1);
+        Node top = take(n);
+        top.left = left;
+        top.right = build(n - 1 - leftSize, blackHeight - 1);
+        updateAggregate(top);
+        return top;
+      }
+
+      // otherwise a 3-node: three thirds around a red left child and the black root
+      int rest = n - 2;
+      int leftSize = (rest + 2) / 3;
+      int middleSize = (rest + 1) / 3;
+      Node left = build(leftSize, blackHeight - 1);
+      Node red = take(leftSize + middleSize + 1);
+      red.isRed = true;
+      red.left = left;
+      red.right = build(middleSize, blackHeight - 1);
+      updateAggregate(red);
+      Node top = take(n);
+      top.left = red;
+      top.right = build(rest - leftSize - middleSize, blackHeight - 1);
+      updateAggregate(top);
+      return top;
+    }
+
+    // takes the next node as a black leaf of the given subtree size, checking the order
+    private Node take(int size) {
+      if(!nodes.hasNext()) throw new IllegalArgumentException("There are fewer entries than the given size!");
+      Node node = nodes.next();
+      if(lastKey != null && node.key.compareTo(lastKey) <= 0) {
+        throw new IllegalArgumentException("Keys must be sorted and distinct!");
+      }
+      lastKey = node.key;
+
+      node.isRed = false;
+      node.left = null;
+      node.right = null;
+      node.subtreeSize = size;
+      return node;
+    }
+  }
+
+  /**
+   * Appends another tree whose keys are all greater than this tree's keys.
+   * The other tree's nodes move over, so it's empty afterwards. This costs
+   * O(log n), plus O(m log n) to index the other tree's m values if this
+   * tree has a value index.
+   * 
+   * @param other a tree with only greater keys
+   */
+  public void join(RedBlackTree<K,V> other) {
+    checkOther(other);
+    if(root != null && other.root != null && findLastKey().compareTo(other.findFirstKey()) >= 0) {
+      throw new IllegalArgumentException("The other tree's keys must all be greater!");
+    }
+    if(valueIndex != null) {
+      for(Map.Entry<K,V> entry : other) valueIndex.put(new ValueKey(entry.getValue(), entry.getKey(), 0), Boolean.TRUE);
+    }
+    root = join(new Piece(root, calcBlackHeight()), new Piece(other.root, other.calcBlackHeight())).root;
+    other.root = null;
+    refreshEnds();
+    other.refreshEnds();
+    other.rebuildValueIndex(); // it's empty now
+    modCount++;
+    other.modCount++;
+  }
+
+  /**
+   * Splits the tree at the given key. Keys less than it stay in this
+   * tree, and the key itself and everything greater go to the returned
+   * tree. This costs O(log n), plus O(m log n) to move the values of the
+   * m keys that go if this tree has a value index (the returned tree gets
+   * one too).
+   * 
+   * @param key where to split
+   * @return a tree with the keys greater than or equal to key
+   */
+  public RedBlackTree<K,V> split(K key) {
+    Split split = split(root, calcBlackHeight(), key);
+    root = split.less.root;
+    refreshEnds();
+    modCount++;
+
+    RedBlackTree<K,V> greater = new RedBlackTree<>(monoid);
+    Piece rest = split.match == null ? split.greater : join(new Piece(null, 0), split.match, split.greater);
+    greater.root = rest.root;
+    greater.refreshEnds();
+    if(valueIndex != null) {
+      for(Map.Entry<K,V> entry : greater) unindexValue(entry.getKey(), entry.getValue());
+      greater.indexValues(valueOrder);
+    }
+    return greater;
+  }
+
+  /**
+   * Adds all of the other tree's pairs to this one. Where both trees have a
+   * key, the value becomes merger(this value, other value), and the key is
+   * dropped if that's null. The other tree's nodes move over, so it's empty
+   * afterwards. With m the size of the smaller tree, this costs
+   * O(m log(n/m + 1)), plus O(k log n) to reindex the other tree's k keys
+   * if this tree has a value index.
+   * 
+   * @param other the tree to add
+   * @param merger combines the values of keys in both trees
+   */
+  public void union(RedBlackTree<K,V> other, BinaryOperator<V> merger) {
+    combine(SetOperation.UNION, other, merger, false);
+  }
+
+  /**
+   * Keeps only the keys that are also in the other tree, with values
+   * merger(this value, other value) (the key is dropped if that's null).
+   * The other tree is emptied. With m the size of the smaller tree, this
+   * costs O(m log(n/m + 1)), plus O(m log m) to rebuild the value index (of
+   * at most m keys) if this tree has one.
+   * 
+   * @param other the tree to intersect with
+   * @param merger combines the values of keys in both trees
+   */
+  public void intersection(RedBlackTree<K,V> other, BinaryOperator<V> merger) {
+    combine(SetOperation.INTERSECTION, other, merger, false);
+  }
+
+  /**
+   * Removes every key that's in the other tree. The other tree is emptied.
+   * With m the size of the smaller tree, this costs O(m log(n/m + 1)), plus
+   * O(k log n) to unindex the other tree's k keys if this tree has a value
+   * index.
+   * 
+   * @param other the keys to remove
+   */
+  public void difference(RedBlackTree<K,V> other) {
+    combine(SetOperation.DIFFERENCE, other, null, false);
+  }
+
+  /**
+   * Same as union, but the two halves of every big enough step run in
+   * parallel on the common fork-join pool. The merger must be safe to call
+   * from several threads.
+   * 
+   * @param other the tree to add
+   * @param merger combines the values of keys in both trees
+   */
+  public void parallelUnion(RedBlackTree<K,V> other, BinaryOperator<V> merger) {
+    combine(SetOperation.UNION, other, merger, true);
+  }
+
+  /**
+   * Same as intersection, but runs in parallel like parallelUnion.
+   * 
+   * @param other the tree to intersect with
+   * @param merger combines the values of keys in both trees
+   */
+  public void parallelIntersection(RedBlackTree<K,V> other, BinaryOperator<V> merger) {
+    combine(SetOperation.INTERSECTION, other, merger, true);
+  }
+
+  /**
+   * Same as difference, but runs in parallel like parallelUnion.
+   * 
+   * @param other the keys to remove
+   */
+  public void parallelDifference(RedBlackTree<K,V> other) {
+    combine(SetOperation.DIFFERENCE, other, null, true);
+  }
+
+  private void checkOther(RedBlackTree<K,V> other) {
+    if(other == this) throw new IllegalArgumentException("Can't combine a tree with itself!");
+    if(other.monoid != monoid) throw new IllegalArgumentException("Both trees have to keep the same aggregate!");
+  }
+
+  private void combine(SetOperation operation, RedBlackTree<K,V> other, BinaryOperator<V> merger, boolean parallel) {
+    checkOther(other);
+    // a union or difference only changes the other tree's keys, so unindex their old values now and index what's left after
+    Object[] changedKeys = null;
+    if(valueIndex != null && operation != SetOperation.INTERSECTION) {
+      changedKeys = new Object[other.size()];
+      int i = 0;
+      for(Map.Entry<K,V> entry : other) {
+        K key = entry.getKey();
+        Node node = findNode(key);
+        if(node != null) unindexValue(key, node.value);
+        changedKeys[i++] = key;
+      }
+    }
+
+    Piece a = new Piece(root, calcBlackHeight());
+    Piece b = new Piece(other.root, other.calcBlackHeight());
+    if(parallel) root = ForkJoinPool.commonPool().invoke(new CombineTask(operation, a, b, merger)).root;
+    else root = combine(operation, a, b, merger, false).root;
+    other.root = null;
+    refreshEnds();
+    other.refreshEnds();
+    if(changedKeys != null) {
+      for(Object changedKey : changedKeys) {
+        @SuppressWarnings("unchecked")
+        Node node = findNode((K) changedKey);
+        if(node != null) valueIndex.put(new ValueKey(node.value, node.key, 0), Boolean.TRUE);
+      }
+    }
+    else rebuildValueIndex(); // an intersection keeps at most the smaller tree's keys, so this is cheap
+    other.rebuildValueIndex(); // it's empty now
+    modCount++;
+    other.modCount++;
+  }
+
+  private enum SetOperation {UNION, INTERSECTION, DIFFERENCE}
+
+  /**
+   * A subtree with a black root (or none), passed around with its black
+   * height so joins don't have to walk down to find it.
+   */
+  private class Piece {
+    private final Node root;
+    private final int blackHeight;
+
+    private Piece(Node root, int blackHeight) {
+      this.root = root;
+      this.blackHeight = blackHeight;
+    }
+  }
+
+  // the two sides of a split, and the node holding the key if there was one
+  private class Split {
+    private Piece less;
+    private Piece greater;
+    private Node match;
+  }
+
+  private class CombineTask extends RecursiveTask<Piece> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient SetOperation operation;
+    private final transient Piece a;
+    private final transient Piece b;
+    private final transient BinaryOperator<V> merger;
+
+    private CombineTask(SetOperation operation, Piece a, Piece b, BinaryOperator<V> merger) {
+      this.operation = operation;
+      this.a = a;
+      this.b = b;
+      this.merger = merger;
+    }
+
+    @Override
+    protected Piece compute() {
+      return combine(operation, a, b, merger, true);
+    }
+  }
+
+  /**
+   * Splits a at b's root key, combines the halves with b's subtrees, and
+   * joins the results back around b's root (or without it, if the key
+   * doesn't make it into the result).
+   */
+  private Piece combine(SetOperation operation, Piece a, Piece b, BinaryOperator<V> merger, boolean parallel) {
+    if(a.root == null) return operation == SetOperation.UNION ? b : a;
+    if(b.root == null) return operation == SetOperation.INTERSECTION ? b : a;
+
+    Node top = b.root;
+    Piece bLess = asPiece(top.left, b.blackHeight - 1);
+    Piece bGreater = asPiece(top.right, b.blackHeight - 1);
+    Split split = split(a.root, a.blackHeight, top.key);
+
+    Piece less;
+    Piece greater;
+    if(parallel && size(a.root) + size(b.root) >= PARALLEL_THRESHOLD) {
+      CombineTask lessTask = new CombineTask(operation, split.less, bLess, merger);
+      lessTask.fork();
+      greater = combine(operation, split.greater, bGreater, merger, true);
+      less = lessTask.join();
+    }
+    else {
+      less = combine(operation, split.less, bLess, merger, parallel);
+      greater = combine(operation, split.greater, bGreater, merger, parallel);
+    }
+
+    // the key stays for a union, or for an intersection if a had it too
+    V value = null;
+    if(operation == SetOperation.UNION) value = split.match == null ? top.value : merger.apply(split.match.value, top.value);
+    else if(operation == SetOperation.INTERSECTION && split.match != null) value = merger.apply(split.match.value, top.value);
+
+    if(value == null) return join(less, greater);
+    top.value = value;
+    return join(less, top, greater);
+  }
+
+  // treats a child subtree as a tree of its own, blackening a red root
+  private Piece asPiece(Node node, int blackHeight) {
+    if(!isRed(node)) return new Piece(node, blackHeight);
+    node.isRed = false;
+    return new Piece(node, blackHeight + 1);
+  }
+
+  /**
+   * Splits the subtree at node, which has the given black height (not
+   * counting node if it's red), into the keys less than and greater than key.
+   */
+  private Split split(Node node, int blackHeight, K key) {
+    if(node == null) {
+      Split split = new Split();
+      split.less = new Piece(null, 0);
+      split.greater = new Piece(null, 0);
+      return split;
+    }
+
+    int childHeight = isRed(node) ? blackHeight : blackHeight - 1;
+    Node left = node.left;
+    Node right = node.right;
+    int compare = key.compareTo(node.key);
+
+    if(compare == 0) {
+      Split split = new Split();
+      split.less = asPiece(left, childHeight);
+      split.greater = asPiece(right, childHeight);
+      split.match = node;
+      return split;
+    }
+    if(compare < 0) {
+      Split split = split(left, childHeight, key);
+      split.greater = join(split.greater, node, asPiece(right, childHeight));
+      return split;
+    }
+    Split split = split(right, childHeight, key);
+    split.less = join(asPiece(left, childHeight), node, split.less);
+    return split;
+  }
+
+  // joins two pieces where every key in less is smaller than every key in greater
+  private Piece join(Piece less, Piece greater) {
+    if(less.root == null) return greater;
+    if(greater.root == null) return less;
+
+    // take less's largest node out and use it as the middle
+    Split split = split(less.root, less.blackHeight, findMaxNode(less.root).key);
+    return join(split.less, split.match, greater);
+  }
+
+  /**
+   * Joins less, middle and greater (in that key order) into one piece.
+   * The shorter piece gets hung as low on the taller one's spine as its
+   * black height allows, under a red middle node, and the path back up is
+   * fixed the same way as after an insert. That costs O(difference in
+   * black heights).
+   */
+  private Piece join(Piece less, Node middle, Piece greater) {
+    Node top;
+    if(less.blackHeight == greater.blackHeight) {
+      middle.left = less.root;
+      middle.right = greater.root;
+      middle.isRed = false;
+      middle.subtreeSize = size(less.root) + size(greater.root) + 1;
+      updateAggregate(middle);
+      return new Piece(middle, less.blackHeight + 1);
+    }
+    if(less.blackHeight > greater.blackHeight) top = joinRight(less.root, less.blackHeight, middle, greater);
+    else top = joinLeft(greater.root, greater.blackHeight, less, middle);
+    return asPiece(top, Math.max(less.blackHeight, greater.blackHeight));
+  }
+
+  // walks down the right spine of the taller, less piece (which is all black)
+  private Node joinRight(Node node, int blackHeight, Node middle, Piece greater) {
+    if(blackHeight == greater.blackHeight) {
+      middle.left = node;
+      middle.right = greater.root;
+      middle.isRed = true;
+      middle.subtreeSize = size(node) + size(greater.root) + 1;
+      updateAggregate(middle);
+      return middle;
+    }
+    node.right = joinRight(node.right, blackHeight - 1, middle, greater);
+    return fixAfterJoin(node);
+  }
+
+  // walks down the left spine of the taller, greater piece, stopping at a black node
+  private Node joinLeft(Node node, int blackHeight, Piece less, Node middle) {
+    if(!isRed(node) && blackHeight == less.blackHeight) {
+      middle.left = less.root;
+      middle.right = node;
+      middle.isRed = true;
+      middle.subtreeSize = size(less.root) + size(node) + 1;
+      updateAggregate(middle);
+      return middle;
+    }
+    node.left = joinLeft(node.left, isRed(node) ? blackHeight : blackHeight - 1, less, middle);
+    return fixAfterJoin(node);
+  }
+
+  private Node fixAfterJoin(Node node) {
+    // the rotations need node's size to be right already
+    node.subtreeSize = size(node.left) + size(node.right) + 1;
+    updateAggregate(node);
+    return fixForDelete(node);
+  }
+
+  /**
+   * Returns an iterator over the entries in key order. Each step is
+   * amortized O(1): the iterator keeps its own stack instead of searching
+   * from the root. The entries are the tree's nodes, so they can't be
+   * changed through setValue. Changing the tree's keys while iterating
+   * makes the iterator throw a ConcurrentModificationException.
+   * 
+   * @return
+   */
+  @Override
+  public Iterator<Map.Entry<K,V>> iterator() {
+    return new Cursor(0, size(), false);
+  }
+
+  /**
+   * Returns an iterator over the entries from the largest key down
+   * 
+   * @return
+   */
+  public Iterator<Map.Entry<K,V>> descendingIterator() {
+    return new Cursor(0, size(), true);
+  }
+
+  /**
+   * Returns a spliterator over the entries in key order, which splits by
+   * rank using the subtree sizes, so parallel streams get even halves
+   * 
+   * @return
+   */
+  @Override
+  public Spliterator<Map.Entry<K,V>> spliterator() {
+    return new EntrySpliterator(0, size());
+  }
+
+  /**
+   * Returns a stream of the entries in key order
+   * 
+   * @param parallel whether the stream should be parallel
+   * @return
+   */
+  public Stream<Map.Entry<K,V>> stream(boolean parallel) {
+    return StreamSupport.stream(spliterator(), parallel);
+  }
+
+  /**
+   * Returns a view of the keys from fromKey (inclusive) to toKey
+   * (exclusive). A null bound leaves that side open.
+   * 
+   * @param fromKey
+   * @param toKey
+   * @return
+   */
+  public Range range(K fromKey, K toKey) {
+    if(fromKey != null && toKey != null && fromKey.compareTo(toKey) > 0) {
+      throw new IllegalArgumentException("fromKey can't be greater than toKey!");
+    }
+    return new Range(fromKey, toKey);
+  }
+
+  /**
+   * Returns a view of the keys less than toKey
+   * 
+   * @param toKey
+   * @return
+   */
+  public Range headMap(K toKey) {
+    return new Range(null, toKey);
+  }
+
+  /**
+   * Returns a view of the keys greater than or equal to fromKey
+   * 
+   * @param fromKey
+   * @return
+   */
+  public Range tailMap(K fromKey) {
+    return new Range(fromKey, null);
+  }
 
-  private Node root; // our root node
-  private Node deletedNode;
+  /**
+   * A live view of the keys between two bounds: it always shows the tree
+   * as it is when it's asked. Its bounds become ranks in O(log n), and
+   * everything after that works by rank.
+   */
+  public class Range implements Iterable<Map.Entry<K,V>> {
+    private final K fromKey; // inclusive, or null for no lower bound
+    private final K toKey; // exclusive, or null for no upper bound
 
-  // node class
-  private class Node {
+    private Range(K fromKey, K toKey) {
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+    }
 
-    private boolean isRed;
-    private Node left = null;
-    private Node right = null;
-    private int subtreeSize = 0;
-    private K key;
-    private V value;
+    private int fromRank() {return fromKey == null ? 0 : findInsertionRank(fromKey);}
+    private int toRank() {return toKey == null ? RedBlackTree.this.size() : findInsertionRank(toKey);}
 
-    private Node(K key, V value, int size, boolean isRed) {
-      this.isRed = isRed;
-      this.key = key;
-      this.value = value;
-      this.subtreeSize = size;
+    /**
+     * Returns the number of keys in the range, in O(log n)
+     * 
+     * @return
+     */
+    public int size() {
+      return toRank() - fromRank();
     }
 
+    public boolean isEmpty() {
+      return size() == 0;
+    }
+
+    @Override
+    public Iterator<Map.Entry<K,V>> iterator() {
+      return new Cursor(fromRank(), toRank(), false);
+    }
+
+    public Iterator<Map.Entry<K,V>> descendingIterator() {
+      return new Cursor(fromRank(), toRank(), true);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K,V>> spliterator() {
+      return new EntrySpliterator(fromRank(), toRank());
+    }
+
+    public Stream<Map.Entry<K,V>> stream(boolean parallel) {
+      return StreamSupport.stream(spliterator(), parallel);
+    }
   }
 
+  /**
+   * Walks the nodes with ranks fromRank to toRank - 1, either way. The stack
+   * holds the nodes still to visit whose other subtree hasn't been entered:
+   * going up, every node we went left at (going down, right).
+   */
+  private class Cursor implements Iterator<Map.Entry<K,V>> {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Node[] stack = (Node[]) new RedBlackTree.Node[MAX_HEIGHT];
+    private int depth;
+    private int remaining;
+    private final boolean descending;
+    private final int expectedModCount = modCount;
+
+    private Cursor(int fromRank, int toRank, boolean descending) {
+      this.descending = descending;
+      this.remaining = toRank - fromRank;
+      if(remaining > 0) seek(descending ? toRank - 1 : fromRank);
+    }
+
+    // fill the stack so its top is the node with the given rank
+    private void seek(int rank) {
+      Node node = root;
+      while(node != null) {
+        int leftSize = size(node.left);
+        if(rank < leftSize) {
+          if(!descending) stack[depth++] = node;
+          node = node.left;
+        }
+        else if(rank > leftSize) {
+          if(descending) stack[depth++] = node;
+          rank -= leftSize + 1;
+          node = node.right;
+        }
+        else {
+          stack[depth++] = node;
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public Map.Entry<K,V> next() {
+      if(modCount != expectedModCount) throw new ConcurrentModificationException();
+      if(remaining == 0) throw new NoSuchElementException();
+      remaining--;
+
+      Node node = stack[--depth];
+      // the next node is the end of the spine of the subtree we haven't visited
+      Node next = descending ? node.left : node.right;
+      while(next != null) {
+        stack[depth++] = next;
+        next = descending ? next.right : next.left;
+      }
+      return node;
+    }
+  }
 
   /**
-   * This constructor creates an empty red black tree:
-   * Just creates a null root. 
+   * Splits a rank range in half until it's small enough, then walks it with
+   * a Cursor. The sizes are exact, so the stream knows every split's size.
    */
-  public RedBlackTree() {
-    root = null;
+  private class EntrySpliterator implements Spliterator<Map.Entry<K,V>> {
+    private int fromRank;
+    private final int toRank;
+    private Cursor cursor; // made on the first advance, after which we no longer split
+
+    private EntrySpliterator(int fromRank, int toRank) {
+      this.fromRank = fromRank;
+      this.toRank = toRank;
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K,V>> trySplit() {
+      if(cursor != null || toRank - fromRank < 2) return null;
+      int middle = (fromRank + toRank) >>> 1;
+      EntrySpliterator lower = new EntrySpliterator(fromRank, middle);
+      fromRank = middle;
+      return lower;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<K,V>> action) {
+      if(cursor == null) cursor = new Cursor(fromRank, toRank, false);
+      if(!cursor.hasNext()) return false;
+      action.accept(cursor.next());
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<K,V>> action) {
+      if(cursor == null) cursor = new Cursor(fromRank, toRank, false);
+      while(cursor.hasNext()) action.accept(cursor.next());
+    }
+
+    @Override
+    public long estimateSize() {
+      return cursor == null ? toRank - fromRank : cursor.remaining;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+    }
+
+    @Override
+    public Comparator<? super Map.Entry<K,V>> getComparator() {
+      return Map.Entry.comparingByKey();
+    }
   }
 
   /**
-   * This method inserts a new key value pair into the tree. 
-   * It assumes that neither the given key nor value are null.
+   * Sums up the values of the keys from fromKey (inclusive) to toKey
+   * (exclusive) with the tree's monoid, in key order, in O(log n). A null
+   * bound leaves that side open.
    * 
-   * 
-   * @param key given key to add
-   * @param value given value to add
+   * @param monoid the monoid the tree was made with
+   * @param fromKey
+   * @param toKey
+   * @return the summary of the range, or the identity if it's empty
    */
-  public void put(K key, V value) {
-    root = findAndAdd(root, key, value);
-    root.isRed = false; // make sure the root is black
+  @SuppressWarnings("unchecked")
+  public <A> A aggregate(Monoid<? super V, A> monoid, K fromKey, K toKey) {
+    if(monoid == null || monoid != this.monoid) throw new IllegalArgumentException("The tree doesn't keep that aggregate!");
+
+    // go down until the node splits the range: fromKey is to its left, toKey to its right
+    Node node = root;
+    while(node != null) {
+      if(fromKey != null && node.key.compareTo(fromKey) < 0) node = node.right;
+      else if(toKey != null && node.key.compareTo(toKey) >= 0) node = node.left;
+      else break;
+    }
+    if(node == null) return monoid.identity();
+
+    // the keys >= fromKey on the left, built up right to left
+    Object left = this.monoid.identity();
+    for(Node currentNode = node.left; currentNode != null; ) {
+      if(fromKey == null) {
+        left = this.monoid.combine(currentNode.aggregate, left);
+        break;
+      }
+      if(currentNode.key.compareTo(fromKey) >= 0) {
+        left = this.monoid.combine(this.monoid.combine(this.monoid.lift(currentNode.value), aggregate(currentNode.right)), left);
+        currentNode = currentNode.left;
+      }
+      else currentNode = currentNode.right;
+    }
+
+    // the keys < toKey on the right, built up left to right
+    Object right = this.monoid.identity();
+    for(Node currentNode = node.right; currentNode != null; ) {
+      if(toKey == null) {
+        right = this.monoid.combine(right, currentNode.aggregate);
+        break;
+      }
+      if(currentNode.key.compareTo(toKey) < 0) {
+        right = this.monoid.combine(right, this.monoid.combine(aggregate(currentNode.left), this.monoid.lift(currentNode.value)));
+        currentNode = currentNode.right;
+      }
+      else currentNode = currentNode.left;
+    }
+
+    return (A) this.monoid.combine(this.monoid.combine(left, this.monoid.lift(node.value)), right);
   }
 
   /**
-   * Private method that does the recursive find process
+   * Returns the k entries with the largest values among the keys from
+   * fromKey (inclusive) to toKey (exclusive), largest first, with equal
+   * values in key order. A null bound leaves that side open, and null
+   * values are skipped. Needs a tree made with Monoid.max (with
+   * Monoid.min it returns the smallest values, smallest first). It's a
+   * best-first search down the subtrees' maxima, so it takes
+   * O((k + log n) log n) however big the range is.
    * 
-   * @param top the given node to start the recursion at
-   * @param key given key to add
-   * @param value given value to add
-   * @return the root with the updated links for tha add it just did
+   * @param k
+   * @param fromKey
+   * @param toKey
+   * @return
    */
-  private Node findAndAdd(Node top, K key, V value) {
-    // if the current node is null, we've reached the the bottom of the tree without finding the correct value
-    if(top == null) return new Node(key, value, 1, true);
+  public List<Map.Entry<K,V>> topByValue(int k, K fromKey, K toKey) {
+    if(!(monoid instanceof Monoid.Extreme)) throw new IllegalStateException("The tree doesn't keep a max or min aggregate!");
+    if(k < 0) throw new IllegalArgumentException("k can't be negative!");
+    @SuppressWarnings("unchecked")
+    Comparator<? super V> order = ((Monoid.Extreme<V>) (Monoid<?, ?>) monoid).order();
+    // best value first, then smallest key - a subtree goes by its smallest key, so it's opened before any equal value after it
+    PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) -> {
+      int compare = order.compare(a.best, b.best);
+      return compare != 0 ? compare : a.minKey.compareTo(b.minKey);
+    });
+
+    // split the range into O(log n) nodes and whole subtrees, the same way aggregate does
+    Node node = root;
+    while(node != null) {
+      if(fromKey != null && node.key.compareTo(fromKey) < 0) node = node.right;
+      else if(toKey != null && node.key.compareTo(toKey) >= 0) node = node.left;
+      else break;
+    }
+    if(node != null) {
+      offerNode(queue, node);
+      for(Node currentNode = node.left; currentNode != null; ) {
+        if(fromKey == null) {
+          offerSubtree(queue, currentNode, findMinNode(currentNode).key);
+          break;
+        }
+        if(currentNode.key.compareTo(fromKey) >= 0) {
+          offerNode(queue, currentNode);
+          if(currentNode.right != null) offerSubtree(queue, currentNode.right, findMinNode(currentNode.right).key);
+          currentNode = currentNode.left;
+        }
+        else currentNode = currentNode.right;
+      }
+      for(Node currentNode = node.right; currentNode != null; ) {
+        if(toKey == null) {
+          offerSubtree(queue, currentNode, findMinNode(currentNode).key);
+          break;
+        }
+        if(currentNode.key.compareTo(toKey) < 0) {
+          offerNode(queue, currentNode);
+          if(currentNode.left != null) offerSubtree(queue, currentNode.left, findMinNode(currentNode.left).key);
+          currentNode = currentNode.right;
+        }
+        else currentNode = currentNode.left;
+      }
+    }
+
+    // take the best until we have k, opening subtrees into their root and two children
+    List<Map.Entry<K,V>> top = new ArrayList<>();
+    while(top.size() < k && !queue.isEmpty()) {
+      Candidate candidate = queue.poll();
+      Node candidateNode = candidate.node;
+      if(!candidate.subtree) {
+        top.add(new AbstractMap.SimpleImmutableEntry<>(candidateNode.key, candidateNode.value));
+        continue;
+      }
+      offerNode(queue, candidateNode);
+      if(candidateNode.left != null) offerSubtree(queue, candidateNode.left, candidate.minKey);
+      if(candidateNode.right != null) offerSubtree(queue, candidateNode.right, findMinNode(candidateNode.right).key);
+    }
+    return top;
+  }
 
-    // depending on the current node's key, recurse down in the proper direction
-    int compare = key.compareTo(top.key);
+  @SuppressWarnings("unchecked")
+  private void offerSubtree(PriorityQueue<Candidate> queue, Node node, K minKey) {
+    if(node.aggregate != null) queue.add(new Candidate(node, true, (V) node.aggregate, minKey));
+  }
 
-    // if the given key is smaller than the current key, recurse left
-    if(compare < 0) top.left = findAndAdd(top.left, key, value);
-    // if the given key is greater than the current key, recurse right
-    else if(compare > 0) top.right = findAndAdd(top.right, key, value);
-    // if we find a key with an equal key, replace its value with the given value
-    else top.value = value;
+  private void offerNode(PriorityQueue<Candidate> queue, Node node) {
+    if(node.value != null) queue.add(new Candidate(node, false, node.value, node.key));
+  }
 
-    // while recursing up the tree, fix any issues
+  /**
+   * A node, or its whole subtree, waiting in topByValue's queue: best is
+   * its value (or its subtree's best), minKey its key (or its subtree's
+   * smallest).
+   */
+  private class Candidate {
+    private final Node node;
+    private final boolean subtree;
+    private final V best;
+    private final K minKey;
+
+    private Candidate(Node node, boolean subtree, V best, K minKey) {
+      this.node = node;
+      this.subtree = subtree;
+      this.best = best;
+      this.minKey = minKey;
+    }
+  }
 
-    // we might end up with a red node that's the right child of a black node, rotate left
-    if(isRed(top.right) && !isRed(top.left)) top = rotateLeft(top);
-    // we might end up with a red node being the child of another red node, rotate right
-    if(isRed(top.left) && isRed(top.left.left)) top = rotateRight(top);
-    // we have 2 red children of a black node, colorFlip!
-    if(isRed(top.left) && isRed(top.right)) colorFlip(top);
+  // the summary of a subtree, where null is the empty one
+  private Object aggregate(Node node) {
+    return node == null ? monoid.identity() : node.aggregate;
+  }
 
-    // recalculate the current node's size from its children's sizes
-    top.subtreeSize = size(top.left) + size(top.right) + 1;
+  // recompute a node's summary from its children's (which have to be right already)
+  private void updateAggregate(Node node) {
+    if(monoid == null) return;
+    node.aggregate = monoid.combine(monoid.combine(aggregate(node.left), monoid.lift(node.value)), aggregate(node.right));
+  }
 
-    return top;
+  // after node's value changed in place: node, then everything above it on path
+  private void updatePathAggregates(Node node) {
+    if(monoid == null) return;
+    updateAggregate(node);
+    for(int i = pathLength - 1; i >= 0; i--) updateAggregate(path[i]);
   }
 
-  
   /**
    * Returns the corresponding value to the given key or null if key
    * is not present.
@@ -120,96 +1350,218 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * Removes a key-value pair, returning the deleted value.
    * Returns null if the key wasn’t present.
    * 
+   * Works top-down: on the way down we make sure the node we step into is
+   * red (or has a red left child), so the node we finally remove is never
+   * black. Then we walk back up path fixing whatever we left leaning the
+   * wrong way.
+   * 
    * @param key
    * @return
    */
   public V delete(K key) {
     if (root == null || !containsKey(key)) return null;
-    root.isRed = true; // make the root red to take redness with us
-    root = findAndDelete(root, key);
-    if(root != null) root.isRed = false; // make sure the root is black
+    modCount++;
+    // make the root red to take redness with us, unless a child already carries it
+    if(!isRed(root.left) && !isRed(root.right)) root.isRed = true;
 
-    // deleted node should have been updated if we successfully deleted the key, or null if not
-    if(deletedNode != null) return deletedNode.value; 
-    else return null;
-  }
+    V deletedValue = null;
+    Node removed; // the node that actually comes out of the tree
+    Node currentNode = root;
+    pathLength = 0;
 
-  // need to set deleted node to deleted node in somewhere
-  private Node findAndDelete(Node currentNode, K key) {
-    // every node we enter has to be red - bring redness down
-    // we need to recalculate compare each time so value is up to date
-
-    // we need to go left
-    if(key.compareTo(currentNode.key) < 0) {
-      // if the left node and left's child is not red, color flip to bring redness with us
-      if(!isRed(currentNode.left) && !isRed(currentNode.left.left)) {
-        colorFlip(currentNode);
-        // if the right node's left child is red, rotate right then left to bring the red node up so we can enter it
-        if(isRed(currentNode.right.left)) {
-          currentNode.right = rotateRight(currentNode.right);
-          currentNode = rotateLeft(currentNode);
-          colorFlip(currentNode); // color flip to make the children red instead of the parent
+    while(true) {
+      // every node we enter has to be red - bring redness down
+      // we need to recalculate compare each time so value is up to date
+
+      // we need to go left
+      if(key.compareTo(currentNode.key) < 0) {
+        // if the left node and left's child is not red, borrow redness
+        if(!isRed(currentNode.left) && !isRed(currentNode.left.left)) {
+          currentNode = moveRedLeft(currentNode);
         }
+        path[pathLength++] = currentNode;
+        currentNode = currentNode.left;
+        continue;
       }
-      currentNode.left = findAndDelete(currentNode.left, key); // recurse left
-    }
 
-    // key to delete is in the right subtree
-    else {
+      // key to delete is in the right subtree, or here
       // move redness right if it exists in left
-      if(isRed(currentNode.left)) currentNode = rotateRight(currentNode);
-      
-      // the current node has the proper key and it has a left red leaf, just return null
-      // could've found key
+      if(isRed(currentNode.left)) currentNode = rotateAt(pathLength, currentNode, rotateRight(currentNode));
+
+      // the current node has the proper key and no right child (so no children at all), just unhook it
       if(key.compareTo(currentNode.key) == 0 && currentNode.right == null) {
-        deletedNode = currentNode;
-        return null;
+        deletedValue = currentNode.value;
+        replaceChild(pathLength, currentNode, null);
+        removed = currentNode;
+        break;
       }
-      
+
       // right and its left child need to be red
       if(!isRed(currentNode.right) && !isRed(currentNode.right.left)) {
-        colorFlip(currentNode);
-        if(isRed(currentNode.left.left)) {
-          currentNode = rotateRight(currentNode);
-          colorFlip(currentNode);
-        }
+        currentNode = moveRedRight(currentNode);
       }
 
-      // we found the key here or either above
+      // we found the key here - swap in its successor and delete that instead
       if(key.compareTo(currentNode.key) == 0) {
-        deletedNode = currentNode;
-        Node min = findMinNode(currentNode.right);
+        deletedValue = currentNode.value; // save it before the successor overwrites it
+        path[pathLength++] = currentNode;
+        Node min = deleteMinBelowPath(currentNode.right);
         currentNode.key = min.key;
         currentNode.value = min.value;
-
-        // call private function th delete the smallest node
-        currentNode.right = deleteMinNode(currentNode.right);
+        removed = min;
+        break;
       }
-      else currentNode.right = findAndDelete(currentNode.right, key); // recurse right
+
+      path[pathLength++] = currentNode;
+      currentNode = currentNode.right;
     }
 
-    // recalculate the current node's size from its children's sizes
-    currentNode.subtreeSize = size(currentNode.left) + size(currentNode.right) + 1;
-    return fixForDelete(currentNode);
+    fixPathAfterDelete();
+    // if an end came out, find the new one (if it was the successor we
+    // swapped up, its key now lives in a node we'll find the same way)
+    if(removed == first) first = findMinNode(root);
+    if(removed == last) last = findMaxNode(root);
+    unindexValue(key, deletedValue);
+    return deletedValue;
   }
 
-  private Node deleteMinNode(Node node) {
-    if (node.left == null) return null;
+  /**
+   * Removes and returns the entry with the smallest key, or returns null if
+   * the tree is empty. Unlike delete this doesn't compare any keys: it just
+   * walks down the left spine once, borrowing redness on the way.
+   * 
+   * @return the removed entry
+   */
+  public Map.Entry<K,V> pollFirst() {
+    if(root == null) return null;
+    modCount++;
+    // make the root red to take redness with us, unless a child already carries it
+    if(!isRed(root.left) && !isRed(root.right)) root.isRed = true;
+
+    pathLength = 0;
+    Node min = deleteMinBelowPath(root);
+    // the smallest node is a leaf left child, so the next one up is its parent
+    first = pathLength == 0 ? null : path[pathLength - 1];
+    if(min == last) last = first;
+    fixPathAfterDelete();
+    unindexValue(min.key, min.value);
+    return min;
+  }
 
-    if (!isRed(node.left) && !isRed(node.left.left)) {
-      colorFlip(node);
-      if(isRed(node.left.left)) {
-      node = rotateRight(node);
+  /**
+   * Removes and returns the entry with the largest key, or returns null if
+   * the tree is empty. Same as pollFirst, down the right spine.
+   * 
+   * @return the removed entry
+   */
+  public Map.Entry<K,V> pollLast() {
+    if(root == null) return null;
+    modCount++;
+    if(!isRed(root.left) && !isRed(root.right)) root.isRed = true;
+
+    Node node = root;
+    pathLength = 0;
+    while(true) {
+      // lean a red left link right, so we have redness to take down the right spine
+      if(isRed(node.left)) node = rotateAt(pathLength, node, rotateRight(node));
+      if(node.right == null) break;
+      if(!isRed(node.right) && !isRed(node.right.left)) node = moveRedRight(node);
+      path[pathLength++] = node;
+      node = node.right;
+    }
+    replaceChild(pathLength, node, null);
+
+    // the largest node is a leaf right child, so the next one down is its parent
+    last = pathLength == 0 ? null : path[pathLength - 1];
+    if(node == first) first = last;
+    fixPathAfterDelete();
+    unindexValue(node.key, node.value);
+    return node;
+  }
+
+  /**
+   * Removes the smallest node below the end of path (node being its topmost
+   * candidate), extending path down to the removed node's parent.
+   * 
+   * @param node the root of the subtree to delete the minimum from
+   * @return the removed node
+   */
+  private Node deleteMinBelowPath(Node node) {
+    while(node.left != null) {
+      // same as going left in delete - borrow redness from the right sibling
+      if(!isRed(node.left) && !isRed(node.left.left)) node = moveRedLeft(node);
+      path[pathLength++] = node;
+      node = node.left;
+    }
+    replaceChild(pathLength, node, null);
+    return node;
+  }
+
+  /**
+   * Going left, flip so the left child is red, and if that made the right
+   * side red-red, rotate the redness over to the left. The result is
+   * linked in at the end of path.
+   * 
+   * @param node the node whose left child needs redness
+   * @return the node now in its place
+   */
+  private Node moveRedLeft(Node node) {
+    colorFlip(node);
+    // if the right node's left child is red, rotate right then left to bring the red node up so we can enter it
+    if(isRed(node.right.left)) {
+      node.right = rotateRight(node.right);
+      node = rotateAt(pathLength, node, rotateLeft(node));
+      colorFlip(node); // color flip to make the children red instead of the parent
+    }
+    return node;
+  }
+
+  /**
+   * Going right, flip so the right child is red, and if that made the left
+   * side red-red, rotate right to fix it. The result is linked in at the end
+   * of path.
+   * 
+   * @param node the node whose right child needs redness
+   * @return the node now in its place
+   */
+  private Node moveRedRight(Node node) {
+    colorFlip(node);
+    if(isRed(node.left.left)) {
+      node = rotateAt(pathLength, node, rotateRight(node));
       colorFlip(node);
-      }
     }
-        
-    node.left = deleteMinNode(node.left);
-    // recalculate the current node's size from its children's sizes
-    node.subtreeSize = size(node.left) + size(node.right) + 1;
-    return fixForDelete(node);
+    return node;
+  }
+
+  /**
+   * Links the result of a rotation in place of the old node
+   * 
+   * @param i old's position on path
+   * @param old the node that was rotated down
+   * @param rotated the node that was rotated up
+   * @return rotated
+   */
+  private Node rotateAt(int i, Node old, Node rotated) {
+    replaceChild(i, old, rotated);
+    return rotated;
+  }
+
+  /**
+   * After a node is removed, walks back up path shrinking subtree sizes and
+   * fixing anything left leaning the wrong way. Links are only rewritten
+   * when a fix actually moved something.
+   */
+  private void fixPathAfterDelete() {
+    for(int i = pathLength - 1; i >= 0; i--) {
+      Node currentNode = path[i];
+      currentNode.subtreeSize--; // one less node below us
+      updateAggregate(currentNode);
+      Node fixed = fixForDelete(currentNode);
+      if(fixed != currentNode) replaceChild(i, currentNode, fixed);
+      path[i] = null; // don't keep removed keys and values reachable
+    }
+    if(root != null) root.isRed = false; // make sure the root is black
   }
-  
 
   /**
    * Returns true if the key is present.
@@ -241,78 +1593,300 @@ public class RedBlackTree<K extends Comparable<K>,V>{
   }
 
   /**
-   * Returns true if the value is present.
-   * 
-   * Search every node comparing the value to the given value?
+   * Returns true if the value is present.
+   * 
+   * O(log n) with a value index, otherwise a search of every node that
+   * stops at the first match.
+   * 
+   * @param value
+   * @return
+   */
+  public boolean containsValue(V value) {
+    if(valueIndex != null) return findValueKey(value) != null;
+    return containsV(root, value);
+  }
+
+  public boolean containsV(Node currentNode, V value) {
+    if (currentNode == null) return false;
+
+    // comapare the value of the currentNode with the given value
+    if(Objects.equals(currentNode.value, value)) return true;
+
+    // recurse down the tree comparing every node's value - stop as soon as one side finds it
+    return containsV(currentNode.left, value) || containsV(currentNode.right, value);
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   * 
+   * @return
+   */
+  public boolean isEmpty() {
+    if (root == null) return true;
+    else return false;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   * 
+   * @return
+   */
+  public int size() {return size(root);}
+
+  private int size(Node node) {
+    // if the given node is not null, return the node's subtree size
+    if (node == null) return 0;
+    else return node.subtreeSize;
+  }
+
+  /**
+   * Finds a key that maps to the given value, or returns null
+   * if there is none. With a value index it's the smallest such key, found
+   * in O(log n); otherwise it's the first one a search of the tree finds.
+   * 
+   * @param value
+   * @return
+   */
+  public K reverseLookup(V value) {
+    if(valueIndex != null) {
+      ValueKey found = findValueKey(value);
+      return found == null ? null : found.key;
+    }
+    Node node = reverseLookup(root, value);
+    return node == null ? null : node.key;
+  }
+
+  private Node reverseLookup(Node currentNode, V value) {
+    if(currentNode == null) return null;
+    // comapare the value of the currentNode with the given value
+    if(Objects.equals(currentNode.value, value)) return currentNode;
+
+    // recurse down the tree comparing every node's value
+    Node left = reverseLookup(currentNode.left, value);
+    if (left != null) return left; // we found it in the left subtree - no need to look right
+    return reverseLookup(currentNode.right, value);
+  }
+
+  /**
+   * Starts keeping a secondary index of the values, ordered by the given
+   * comparator (then by key), and builds it from the current entries in
+   * O(n log n). From then on every put, delete and compute keeps it up to
+   * date for O(log n) more each, and containsValue, reverseLookup,
+   * keysWithValue and keysWithValueBetween take O(log n) (plus the number
+   * of keys returned). Joins, splits and set operations update it for the
+   * keys they move or change.
+   * 
+   * @param valueOrder how to order the values (nulls go first)
+   */
+  public void indexValues(Comparator<? super V> valueOrder) {
+    this.valueOrder = Comparator.nullsFirst(valueOrder);
+    valueIndex = new RedBlackTree<>(); // so ValueKeys compare with the new order
+    rebuildValueIndex();
+  }
+
+  /**
+   * Returns true if the values are indexed
+   * 
+   * @return
+   */
+  public boolean hasValueIndex() {
+    return valueIndex != null;
+  }
+
+  /**
+   * Returns the keys mapping to the given value, in key order. Needs a
+   * value index.
+   * 
+   * @param value
+   * @return
+   */
+  public List<K> keysWithValue(V value) {
+    return keysWithValueBetween(value, value);
+  }
+
+  /**
+   * Returns the keys whose values are between fromValue and toValue (both
+   * inclusive), ordered by value and then key. Needs a value index.
+   * 
+   * @param fromValue
+   * @param toValue
+   * @return
+   */
+  public List<K> keysWithValueBetween(V fromValue, V toValue) {
+    checkValueIndex();
+    List<K> keys = new ArrayList<>();
+    RedBlackTree<ValueKey, Boolean>.Range range = valueIndex.range(new ValueKey(fromValue, null, -1), new ValueKey(toValue, null, 1));
+    for(Map.Entry<ValueKey, Boolean> entry : range) keys.add(entry.getKey().key);
+    return keys;
+  }
+
+  /**
+   * Returns the k entries with the largest values, largest first, with
+   * equal values in key order (so the ones cut off at the end are the
+   * greatest keys). Needs a value index, and takes O(log n + k). For the
+   * top values in a key range, see topByValue(k, fromKey, toKey).
    * 
-   * @param value
+   * @param k
    * @return
    */
-  public boolean containsValue(V value) {
-    return containsV(root, value);
+  public List<Map.Entry<K,V>> topByValue(int k) {
+    checkValueIndex();
+    if(k < 0) throw new IllegalArgumentException("k can't be negative!");
+    int size = size();
+    k = Math.min(k, size);
+    List<Map.Entry<K,V>> top = new ArrayList<>(k);
+    if(k == 0) return top;
+
+    // the smallest value that makes it, and where the keys with that value start and end
+    V lowest = valueIndex.select(size - k).value;
+    int lowestStart = valueIndex.findInsertionRank(new ValueKey(lowest, null, -1));
+    int lowestEnd = valueIndex.findInsertionRank(new ValueKey(lowest, null, 1));
+
+    // every value above it makes it: read them largest first, one run of equal values at a time
+    List<ValueKey> above = new ArrayList<>(size - lowestEnd);
+    valueIndex.selectRange(lowestEnd, size).forEach(entry -> above.add(entry.getKey()));
+    for(int end = above.size(); end > 0; ) {
+      int start = end - 1;
+      while(start > 0 && valueOrder.compare(above.get(start - 1).value, above.get(end - 1).value) == 0) start--;
+      for(int i = start; i < end; i++) top.add(above.get(i).toEntry());
+      end = start;
+    }
+    // then as many of the smallest keys with the lowest value as fit
+    valueIndex.selectRange(lowestStart, lowestStart + k - top.size()).forEach(entry -> top.add(entry.getKey().toEntry()));
+    return top;
   }
 
-  public boolean containsV(Node currentNode, V value) {
-    if (currentNode == null) return false;
-
-    // comapare the value of the currentNode with the given value
-    if(currentNode.value.equals(value)) return true;
-
-    // recurse down the tree comparing every node's value
-    boolean left = containsV(currentNode.left, value);
-    boolean right = containsV(currentNode.right, value);
-
-    if (left != false) return true; // if left subtree found it, return true
-    else if (right != false) return true; // if right subtree found it, return true
-    else return false; // we didn't find it
+  /**
+   * Returns the number of keys whose values are greater than the key's -
+   * 0 for a key with the largest value - or -1 if the key isn't present.
+   * Equal values share a rank. Needs a value index, and takes O(log n).
+   * 
+   * @param key
+   * @return
+   */
+  public int valueRank(K key) {
+    checkValueIndex();
+    if(!containsKey(key)) return -1;
+    return size() - valueIndex.findInsertionRank(new ValueKey(get(key), null, 1));
   }
 
   /**
-   * Returns true if the tree is empty.
+   * Returns the number of keys whose values are between fromValue and
+   * toValue (both inclusive). Needs a value index, and takes O(log n).
    * 
+   * @param fromValue
+   * @param toValue
    * @return
    */
-  public boolean isEmpty() {
-    if (root == null) return true;
-    else return false;
+  public int countWithValueBetween(V fromValue, V toValue) {
+    checkValueIndex();
+    return Math.max(0, valueIndex.findInsertionRank(new ValueKey(toValue, null, 1))
+        - valueIndex.findInsertionRank(new ValueKey(fromValue, null, -1)));
   }
 
   /**
-   * Returns n, the number of key-value pairs in the tree.
+   * Returns the number of keys with the given value, such as how many words
+   * appear exactly n times. Needs a value index, and takes O(log n).
    * 
+   * @param value
    * @return
    */
-  public int size() {return size(root);}
-
-  private int size(Node node) {
-    // if the given node is not null, return the node's subtree size
-    if (node == null) return 0;
-    else return node.subtreeSize;
+  public int countWithValue(V value) {
+    return countWithValueBetween(value, value);
   }
 
   /**
-   * Finds a key that maps to the given value, or returns null
-   * if there is none.
+   * Returns every distinct value with its number of keys, in value order.
+   * Needs a value index, and jumps from one value to the next, so it takes
+   * O(d log n) for d distinct values however many keys share them.
    * 
-   * @param value
    * @return
    */
-  public K reverseLookup(V value) {
-    return reverseLookup(root, value).key;
+  public List<Map.Entry<V,Integer>> valueHistogram() {
+    checkValueIndex();
+    List<Map.Entry<V,Integer>> histogram = new ArrayList<>();
+    for(int rank = 0; rank < size(); ) {
+      V value = valueIndex.select(rank).value;
+      int next = valueIndex.findInsertionRank(new ValueKey(value, null, 1));
+      histogram.add(new AbstractMap.SimpleImmutableEntry<>(value, next - rank));
+      rank = next;
+    }
+    return histogram;
   }
 
-  private Node reverseLookup(Node currentNode, V value) {
-    if(currentNode == null) return null;
-    // comapare the value of the currentNode with the given value
-    if(currentNode.value == value) return currentNode;
+  private void checkValueIndex() {
+    if(valueIndex == null) throw new IllegalStateException("Values aren't indexed - call indexValues first!");
+  }
 
-    // recurse down the tree comparing every node's value
-    Node left = reverseLookup(currentNode.left, value);
-    Node right = reverseLookup(currentNode.right, value);
+  // the index entry with the smallest key for value, or null if no key has it
+  private ValueKey findValueKey(V value) {
+    ValueKey found = valueIndex.ceilingKey(new ValueKey(value, null, -1));
+    if(found == null || valueOrder.compare(found.value, value) != 0) return null;
+    return found;
+  }
+
+  private void reindexValue(K key, V oldValue, V newValue) {
+    if(valueIndex == null) return;
+    valueIndex.delete(new ValueKey(oldValue, key, 0));
+    valueIndex.put(new ValueKey(newValue, key, 0), Boolean.TRUE);
+  }
+
+  private void unindexValue(K key, V value) {
+    if(valueIndex != null) valueIndex.delete(new ValueKey(value, key, 0));
+  }
+
+  // the node with the key, or null - like get, but tells a null value from a missing key
+  private Node findNode(K key) {
+    Node currentNode = root;
+    while(currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare < 0) currentNode = currentNode.left;
+      else if(compare > 0) currentNode = currentNode.right;
+      else return currentNode;
+    }
+    return null;
+  }
+
+  // build the index again from scratch: sort the pairs, then load them in linear time
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private void rebuildValueIndex() {
+    if(valueIndex == null) return;
+    ValueKey[] valueKeys = (ValueKey[]) new RedBlackTree.ValueKey[size()];
+    int i = 0;
+    for(Map.Entry<K,V> entry : this) valueKeys[i++] = new ValueKey(entry.getValue(), entry.getKey(), 0);
+    Arrays.sort(valueKeys);
+    Boolean[] present = new Boolean[valueKeys.length];
+    Arrays.fill(present, Boolean.TRUE);
+    valueIndex = fromSorted(valueKeys, present);
+  }
+
+  /**
+   * A value and its key, the keys of the value index. Ordered by value,
+   * then by key. A null key with a bound of -1 or 1 stands for just before
+   * or just after every key with that value, for searching.
+   */
+  private class ValueKey implements Comparable<ValueKey> {
+    private final V value;
+    private final K key;
+    private final int bound;
+
+    private ValueKey(V value, K key, int bound) {
+      this.value = value;
+      this.key = key;
+      this.bound = bound;
+    }
 
-    if (left != null) {return left;} // if left is not null, we found it in the left subtree - return the node stored in left
-    else if (right != null) {return right;} // if right is not null - return the node stored in right
-    else return null; // we didn't find the value :( - return null
+    private Map.Entry<K,V> toEntry() {
+      return new AbstractMap.SimpleImmutableEntry<>(key, value);
+    }
+
+    @Override
+    public int compareTo(ValueKey other) {
+      int compare = valueOrder.compare(value, other.value);
+      if(compare != 0) return compare;
+      if(bound != 0 || other.bound != 0) return Integer.compare(bound, other.bound);
+      return key.compareTo(other.key);
+    }
   }
 
   /**
@@ -322,7 +1896,13 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * @return
    */
   public K findFirstKey() {
-    return findMinNode(root).key;
+    return first == null ? null : first.key; // kept up to date by every change
+  }
+
+  // find both ends again after the tree was rebuilt or relinked wholesale
+  private void refreshEnds() {
+    first = findMinNode(root);
+    last = findMaxNode(root);
   }
 
   /**
@@ -347,15 +1927,22 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * @return
    */
   public K findLastKey() {
-    Node currentNode = root;
+    return last == null ? null : last.key; // kept up to date by every change
+  }
 
+  /**
+   * Find the largest node
+   * 
+   * @param node
+   * @return
+   */
+  private Node findMaxNode(Node node) {
     // greatest key will be rightmost - travel right as far as possible
-    while(currentNode != null) {
-      if(currentNode.right == null) return currentNode.key;
-      else currentNode = currentNode.right;
+    while(node != null) {
+      if(node.right == null) return node;
+      else node = node.right;
     }
-
-    return null; // the root is null - return null
+    return null;
   }
 
 
@@ -378,14 +1965,13 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * and then right as much as possible.
    * Otherwise, it is the most recent ancestor from which we traveled right.
    * 
+   * Finding the key and its predecessor is one descent. Use lowerKey for
+   * keys that might not be present.
+   * 
    * @param key
    * @return
    */
   public K findPredecessor(K key) {
-
-    // first find the node
-    if (!containsKey(key)) return null; // see if the key is in the tree
-
     Node currentNode = root;
     Node predecessor = null; 
 
@@ -403,22 +1989,10 @@ public class RedBlackTree<K extends Comparable<K>,V>{
 
       // we only reach this segment of code if we found the key - neither of the if statements activated
       else {
-        // travel left once
-        if(currentNode.left != null) {
-          currentNode = currentNode.left;
-          // then right as much as possible
-          while(currentNode.right != null) {
-          currentNode = currentNode.right;
-          }
-          return currentNode.key;
-        }
-        else {
-          // the node does not have a left subtree - it's predecessor is the most recent from which we traveled right
-          if(predecessor != null) {
-            return predecessor.key;
-          }
-          else return null;
-        }
+        // travel left once, then right as much as possible
+        if(currentNode.left != null) return findMaxNode(currentNode.left).key;
+        // the node does not have a left subtree - it's predecessor is the most recent from which we traveled right
+        return predecessor == null ? null : predecessor.key;
       }
     }
     return null; // the key doesn't exist
@@ -428,16 +2002,13 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * Returns the successor of the given key, or null
    * if the key is not present or has no successor.
    * 
-   * Same logic as predecessor but in reverse
+   * Same logic as predecessor but in reverse. Use higherKey for keys that
+   * might not be present.
    * 
    * @param key
    * @return
    */
   public K findSuccessor(K key) {
-
-    // first find the node
-    if (!containsKey(key)) return null; // see if the node is in the tree
-
     Node currentNode = root;
     Node successor = null; 
 
@@ -455,28 +2026,104 @@ public class RedBlackTree<K extends Comparable<K>,V>{
 
       // we only reach this segment of code if we found the key - neither of the if statements activated
       else {
-        // if there is a right subtree, travel right once
-        if(currentNode.right != null) {
-          currentNode = currentNode.right; 
-          // and then left as far as possible
-          while(currentNode.left != null) {
-          currentNode = currentNode.left;
-          }
-          return currentNode.key;
-        }
-        else {
-          // the node does not have a right subtree - return the most recent ancestor from which we traveled right
-          if(successor != null) {
-            return successor.key;
-          }
-          else return null;
-        }
+        // if there is a right subtree, travel right once and then left as far as possible
+        if(currentNode.right != null) return findMinNode(currentNode.right).key;
+        // the node does not have a right subtree - return the most recent ancestor from which we traveled left
+        return successor == null ? null : successor.key;
       }
     }
   
     return null; // the key doesn't exist
   }
 
+  /**
+   * Returns the greatest key less than or equal to the given one, or null
+   * if there is none. The key doesn't have to be in the tree.
+   * 
+   * @param key
+   * @return
+   */
+  public K floorKey(K key) {
+    Node currentNode = root;
+    Node floor = null;
+
+    while (currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare == 0) return currentNode.key;
+      if(compare > 0) {
+        floor = currentNode; // this one fits - look for a bigger one to its right
+        currentNode = currentNode.right;
+      }
+      else currentNode = currentNode.left;
+    }
+    return floor == null ? null : floor.key;
+  }
+
+  /**
+   * Returns the least key greater than or equal to the given one, or null
+   * if there is none. The key doesn't have to be in the tree.
+   * 
+   * @param key
+   * @return
+   */
+  public K ceilingKey(K key) {
+    Node currentNode = root;
+    Node ceiling = null;
+
+    while (currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if(compare == 0) return currentNode.key;
+      if(compare < 0) {
+        ceiling = currentNode; // this one fits - look for a smaller one to its left
+        currentNode = currentNode.left;
+      }
+      else currentNode = currentNode.right;
+    }
+    return ceiling == null ? null : ceiling.key;
+  }
+
+  /**
+   * Returns the greatest key strictly less than the given one, or null if
+   * there is none. The key doesn't have to be in the tree.
+   * 
+   * @param key
+   * @return
+   */
+  public K lowerKey(K key) {
+    Node currentNode = root;
+    Node lower = null;
+
+    while (currentNode != null) {
+      if(key.compareTo(currentNode.key) > 0) {
+        lower = currentNode;
+        currentNode = currentNode.right;
+      }
+      else currentNode = currentNode.left;
+    }
+    return lower == null ? null : lower.key;
+  }
+
+  /**
+   * Returns the least key strictly greater than the given one, or null if
+   * there is none. The key doesn't have to be in the tree.
+   * 
+   * @param key
+   * @return
+   */
+  public K higherKey(K key) {
+    Node currentNode = root;
+    Node higher = null;
+
+    while (currentNode != null) {
+      if(key.compareTo(currentNode.key) < 0) {
+        higher = currentNode;
+        currentNode = currentNode.left;
+      }
+      else currentNode = currentNode.right;
+    }
+    return higher == null ? null : higher.key;
+  }
+
   /**
    * Returns the rank of the given key, or -1 if the key is
    * not present. 
@@ -485,7 +2132,6 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * @return
    */
   public int findRank(K key) {
-    if(!containsKey(key)) return -1; // is the key present
     Node currentNode = root;
     int rank = 0; // keep track of the rank
 
@@ -506,7 +2152,28 @@ public class RedBlackTree<K extends Comparable<K>,V>{
         return rank + size(currentNode.left);
       }
     }
-    return 0;
+    return -1; // the key isn't present
+  }
+
+  /**
+   * Returns the rank the key has or would have if it were inserted: the
+   * number of keys less than it. The key doesn't have to be in the tree.
+   * 
+   * @param key
+   * @return
+   */
+  public int findInsertionRank(K key) {
+    Node currentNode = root;
+    int rank = 0;
+
+    while (currentNode != null) {
+      if(key.compareTo(currentNode.key) <= 0) currentNode = currentNode.left;
+      else {
+        rank += size(currentNode.left) + 1;
+        currentNode = currentNode.right;
+      }
+    }
+    return rank;
   }
 
   /**
@@ -540,6 +2207,172 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     return null;
   }
 
+  /**
+   * Returns the keys with the given ranks, in the same order. The ranks
+   * must be sorted (repeats are fine). They're all found in one walk down
+   * the tree that splits them between the subtrees at every node, so the
+   * top of the tree is visited once instead of once per rank: k ranks cost
+   * O(k log(n/k) + k) rather than O(k log n), and a page of neighbors
+   * costs O(log n + k).
+   * 
+   * @param sortedRanks
+   * @return
+   */
+  public List<K> selectAll(int[] sortedRanks) {
+    for(int i = 0; i < sortedRanks.length; i++) {
+      if(sortedRanks[i] < 0 || sortedRanks[i] >= size()) throw new IllegalArgumentException("Rank is out of bounds!");
+      if(i > 0 && sortedRanks[i] < sortedRanks[i - 1]) throw new IllegalArgumentException("The ranks must be sorted!");
+    }
+    @SuppressWarnings("unchecked")
+    K[] keys = (K[]) new Comparable<?>[sortedRanks.length];
+    selectAll(root, 0, sortedRanks, 0, sortedRanks.length, keys);
+    return Arrays.asList(keys);
+  }
+
+  // finds ranks[from..to - 1], which are all in node's subtree, whose smallest key has rank offset
+  private void selectAll(Node node, int offset, int[] ranks, int from, int to, K[] keys) {
+    if(from == to) return;
+    int nodeRank = offset + size(node.left);
+    // the ranks below nodeRank go left, the ones equal are this node, the rest go right
+    int equal = lowerBound(ranks, from, to, nodeRank);
+    int greater = lowerBound(ranks, equal, to, nodeRank + 1);
+    selectAll(node.left, offset, ranks, from, equal, keys);
+    for(int i = equal; i < greater; i++) keys[i] = node.key;
+    selectAll(node.right, nodeRank + 1, ranks, greater, to, keys);
+  }
+
+  // the first index in from..to - 1 of sorted whose value is at least value, or to if none is
+  private static int lowerBound(int[] sorted, int from, int to, int value) {
+    while(from < to) {
+      int middle = (from + to) >>> 1;
+      if(sorted[middle] < value) from = middle + 1;
+      else to = middle;
+    }
+    return from;
+  }
+
+  /**
+   * Returns the ranks of the given keys, in the same order, with -1 for
+   * keys that aren't present. The keys must be sorted (repeats are fine).
+   * Like selectAll, it's one shared walk down the tree.
+   * 
+   * @param sortedKeys
+   * @return
+   */
+  public int[] rankAll(K[] sortedKeys) {
+    for(int i = 1; i < sortedKeys.length; i++) {
+      if(sortedKeys[i].compareTo(sortedKeys[i - 1]) < 0) throw new IllegalArgumentException("The keys must be sorted!");
+    }
+    int[] ranks = new int[sortedKeys.length];
+    rankAll(root, 0, sortedKeys, 0, sortedKeys.length, ranks);
+    return ranks;
+  }
+
+  // ranks keys[from..to - 1], which can only be in node's subtree, whose smallest key has rank offset
+  private void rankAll(Node node, int offset, K[] keys, int from, int to, int[] ranks) {
+    if(from == to) return;
+    if(node == null) {
+      Arrays.fill(ranks, from, to, -1);
+      return;
+    }
+    int nodeRank = offset + size(node.left);
+    // the keys less than node's go left, the equal ones are this node, the rest go right
+    int equal = keyBound(keys, from, to, node.key, false);
+    int greater = keyBound(keys, equal, to, node.key, true);
+    rankAll(node.left, offset, keys, from, equal, ranks);
+    Arrays.fill(ranks, equal, greater, nodeRank);
+    rankAll(node.right, nodeRank + 1, keys, greater, to, ranks);
+  }
+
+  // the first index in from..to - 1 of sorted whose key is greater than key (or equal too, unless strict)
+  private static <K extends Comparable<K>> int keyBound(K[] sorted, int from, int to, K key, boolean strict) {
+    while(from < to) {
+      int middle = (from + to) >>> 1;
+      int compare = sorted[middle].compareTo(key);
+      if(compare < 0 || (strict && compare == 0)) from = middle + 1;
+      else to = middle;
+    }
+    return from;
+  }
+
+  /**
+   * Returns the entries with ranks fromRank (inclusive) to toRank
+   * (exclusive) as a stream, in key order. Finding the start takes
+   * O(log n) and each entry after it amortized O(1), so a page of k
+   * entries costs O(log n + k).
+   * 
+   * @param fromRank
+   * @param toRank
+   * @return
+   */
+  public Stream<Map.Entry<K,V>> selectRange(int fromRank, int toRank) {
+    if(fromRank < 0 || toRank > size() || fromRank > toRank) throw new IllegalArgumentException("Rank is out of bounds!");
+    return StreamSupport.stream(new EntrySpliterator(fromRank, toRank), false);
+  }
+
+  /*
+   * Lookups for ConcurrentRedBlackTree's optimistic readers. A writer may be
+   * rotating nodes underneath them, so for a moment the links can even form
+   * a cycle. They give up with a ConcurrentModificationException after
+   * MAX_HEIGHT steps, which a real tree never needs; anything they return
+   * only counts once the caller has validated its stamp.
+   */
+
+  V getOptimistic(K key) {
+    Node node = findNodeOptimistic(key);
+    return node == null ? null : node.value;
+  }
+
+  boolean containsKeyOptimistic(K key) {
+    return findNodeOptimistic(key) != null;
+  }
+
+  private Node findNodeOptimistic(K key) {
+    Node currentNode = root;
+    for(int steps = 0; currentNode != null; steps++) {
+      if(steps == MAX_HEIGHT) throw new ConcurrentModificationException();
+      int compare = key.compareTo(currentNode.key);
+      if(compare < 0) currentNode = currentNode.left;
+      else if(compare > 0) currentNode = currentNode.right;
+      else return currentNode;
+    }
+    return null;
+  }
+
+  int findRankOptimistic(K key) {
+    Node currentNode = root;
+    int rank = 0;
+    for(int steps = 0; currentNode != null; steps++) {
+      if(steps == MAX_HEIGHT) throw new ConcurrentModificationException();
+      int compare = key.compareTo(currentNode.key);
+      if(compare < 0) currentNode = currentNode.left;
+      else if(compare > 0) {
+        rank += size(currentNode.left) + 1;
+        currentNode = currentNode.right;
+      }
+      else return rank + size(currentNode.left);
+    }
+    return -1;
+  }
+
+  K selectOptimistic(int rank) {
+    if (rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+    Node node = root;
+    for(int steps = 0; node != null; steps++) {
+      if(steps == MAX_HEIGHT) throw new ConcurrentModificationException();
+      int size = size(node.left);
+      if(rank < size) node = node.left;
+      else if(size == rank) return node.key;
+      else {
+        rank = rank - (size + 1);
+        node = node.right;
+      }
+    }
+    throw new ConcurrentModificationException(); // sizes didn't add up
+  }
+
   /**
    * Returns the number of red nodes in the tree
    * 
@@ -611,22 +2444,82 @@ public class RedBlackTree<K extends Comparable<K>,V>{
   public double calcAverageDepth() {
     if(isEmpty()) return Double.NaN; // empty tree, return NaN
 
-    int sumOfDepth = calcTotalDepth(root, 0);
+    long sumOfDepth = calcTotalDepth(root, 0); // a long - past ~100M nodes this overflows an int
     int numOfNodes = size(root); // calculate the number of nodes in the tree
 
     return (double) sumOfDepth / numOfNodes; // divide sum of depth and the number of nodes to get average
   }
 
-  private int calcTotalDepth(Node node, int currentDepth) {
+  private long calcTotalDepth(Node node, int currentDepth) {
     if(node == null) return 0;
 
     // recurse on left and right subtrees, keeping track of the depth
-    int left = calcTotalDepth(node.left, currentDepth + 1);
-    int right = calcTotalDepth(node.right, currentDepth + 1);
+    long left = calcTotalDepth(node.left, currentDepth + 1);
+    long right = calcTotalDepth(node.right, currentDepth + 1);
 
     return currentDepth + left + right; // add the two numbers and return the sum
   }
 
+  /**
+   * Returns a snapshot of the tree's shape. Trees of up to STATS_SAMPLES
+   * nodes are measured exactly; bigger ones are sampled in
+   * O(STATS_SAMPLES log n), whatever their size, so this is cheap enough
+   * to poll. The snapshot is kept until a key is added or removed, so
+   * polling an unchanged tree costs nothing. Any number of threads may
+   * call it at once, as long as none of them changes the tree.
+   * 
+   * @return
+   */
+  public TreeStats stats() {
+    CachedStats cached = cachedStats;
+    if(cached != null && cached.modCount == modCount) return cached.stats;
+
+    TreeStats stats;
+    int size = size();
+    if(size <= STATS_SAMPLES) {
+      stats = new TreeStats(size, calcHeight(), calcBlackHeight(), calcAverageDepth(), countRedNodes(), true);
+    }
+    else {
+      long totalDepth = 0;
+      int redSamples = 0;
+      int height = 0;
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      for(int i = 0; i < STATS_SAMPLES; i++) {
+        // a uniformly random node: every node is as likely, so the averages are unbiased
+        int rank = random.nextInt(size);
+
+        // walk down to the node with that rank, counting the steps
+        Node node = root;
+        int depth = 0;
+        for(int leftSize = size(node.left); rank != leftSize; leftSize = size(node.left), depth++) {
+          if(rank < leftSize) node = node.left;
+          else {
+            rank -= leftSize + 1;
+            node = node.right;
+          }
+        }
+        totalDepth += depth;
+        if(isRed(node)) redSamples++;
+        height = Math.max(height, depth + 1);
+      }
+      stats = new TreeStats(size, height, calcBlackHeight(), (double) totalDepth / STATS_SAMPLES,
+          Math.round((double) redSamples * size / STATS_SAMPLES), false);
+    }
+    cachedStats = new CachedStats(stats, modCount);
+    return stats;
+  }
+
+  // a stats snapshot with the modCount it was taken at - immutable, so it's published whole or not at all
+  private static final class CachedStats {
+    private final TreeStats stats;
+    private final int modCount;
+
+    private CachedStats(TreeStats stats, int modCount) {
+      this.stats = stats;
+      this.modCount = modCount;
+    }
+  }
+
 
 
   /**
@@ -675,9 +2568,11 @@ public class RedBlackTree<K extends Comparable<K>,V>{
 
     // since newRoot is in the same position, its subtree size will be the same as oldRoot's
     newRoot.subtreeSize = oldRoot.subtreeSize; 
+    newRoot.aggregate = oldRoot.aggregate; // same for the aggregate
 
     // calculate new subtree size of oldRoot
     oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1; 
+    updateAggregate(oldRoot);
 
     // return the node now at the root position of this (sub)tree
     return newRoot;
@@ -700,7 +2595,9 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     oldRoot.isRed = true;  // color flip would get called right after this
 
     newRoot.subtreeSize = oldRoot.subtreeSize;
+    newRoot.aggregate = oldRoot.aggregate;
     oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+    updateAggregate(oldRoot);
 
     return newRoot;
   }
@@ -0,0 +1,301 @@
+/**
+ * Quick smoke runner for RedBlackTree. It measures put, get, containsKey,
+ * delete, select, findRank, findPredecessor and findSuccessor over a range of
+ * tree sizes and key distributions, and reports throughput (ops/s), sampled
+ * p99 latency and bytes allocated per operation.
+ *
+ * It needs nothing but javac, which makes it handy for a quick look, but
+ * its numbers are rough. Every case runs in one JVM, so the key types'
+ * compareTo call sites go megamorphic and earlier cases skew later ones,
+ * and each sampled latency includes a nanoTime pair and a switch. For
+ * numbers to act on, use the JMH benchmarks in jmh/ (see
+ * bench.RedBlackTreeJmh), which fork per case.
+ *
+ * Usage:
+ *   javac *.java
+ *   java -Xmx8g RedBlackTreeBenchmark [--sizes 1000,100000,10000000]
+ *        [--dists sequential,random,zipf,alice.txt,frankenstein.txt]
+ *        [--ops put,get,...] [--warmup 3] [--iterations 5]
+ *
+ * Text distributions use the same tokenizing rules as WordFreqs2, so their
+ * size is capped at the number of distinct words in the file. Add ":bytes"
+ * to a text distribution (alice.txt:bytes) to key the tree by ByteKey
+ * instead of String.
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+public class RedBlackTreeBenchmark {
+  private static final String[] ALL_OPS = {"put", "get", "containsKey", "delete", "select",
+      "findRank", "findPredecessor", "findSuccessor"};
+  private static final int LATENCY_SAMPLES = 10_000; // ops timed one at a time per iteration
+  private static final double ZIPF_EXPONENT = 0.99;
+
+  private static long sink; // consumes results so the JIT can't drop the calls
+
+  public static void main(String[] args) throws IOException {
+    int[] sizes = {1_000, 10_000, 100_000, 1_000_000};
+    String[] dists = {"sequential", "random", "zipf", "alice.txt", "frankenstein.txt"};
+    String[] ops = ALL_OPS;
+    int warmup = 3;
+    int iterations = 5;
+
+    // read the command line flags
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--sizes": sizes = Arrays.stream(args[i+1].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+        case "--dists": dists = args[i+1].split(","); break;
+        case "--ops": ops = args[i+1].split(","); break;
+        case "--warmup": warmup = Integer.parseInt(args[i+1]); break;
+        case "--iterations": iterations = Integer.parseInt(args[i+1]); break;
+        default:
+          System.err.println("Unknown option \"" +args[i]+ "\".");
+          System.exit(1);
+      }
+    }
+
+    System.out.printf("%-16s %-16s %10s %14s %12s %12s%n", "op", "distribution", "size", "ops/s", "p99 (ns)", "B/op");
+    for (String dist : dists) {
+      Set<Integer> seen = new HashSet<>(); // capped text workloads would otherwise repeat
+      for (int size : sizes) {
+        Workload<?> workload = makeWorkload(dist, size);
+        if (!seen.add(workload.keys.length)) continue;
+        for (String op : ops) {
+          Result result = run(workload, op, warmup, iterations);
+          System.out.printf("%-16s %-16s %10d %14.0f %12d %12.1f%n", op, dist, workload.keys.length,
+              result.opsPerSecond, result.p99Nanos, result.bytesPerOp);
+        }
+      }
+    }
+    if (sink == 42) System.out.println(); // never true in practice, keeps sink live
+  }
+
+  // the keys to insert plus a shuffled lookup order over those keys (the JMH benchmarks use these too)
+  static class Workload<K extends Comparable<K>> {
+    final K[] keys; // insertion order
+    final K[] lookups; // query order, drawn from the inserted keys
+
+    private Workload(K[] keys, K[] lookups) {
+      this.keys = keys;
+      this.lookups = lookups;
+    }
+  }
+
+  private static class Result {
+    private double opsPerSecond;
+    private long p99Nanos;
+    private double bytesPerOp;
+  }
+
+  // build the keys for one distribution & size (text files are capped at their vocabulary)
+  static Workload<?> makeWorkload(String dist, int size) throws IOException {
+    Random random = new Random(size * 31L + dist.hashCode());
+
+    if (dist.equals("sequential") || dist.equals("random") || dist.equals("zipf")) {
+      Integer[] keys = new Integer[size];
+      for (int i = 0; i < size; i++) keys[i] = i;
+      if (dist.equals("random")) shuffle(keys, random);
+
+      Integer[] lookups = new Integer[size];
+      if (dist.equals("zipf")) {
+        // skewed queries: a few hot keys get most of the traffic
+        double[] cumulative = zipfTable(size);
+        for (int i = 0; i < size; i++) lookups[i] = zipfSample(cumulative, random);
+      }
+      else {
+        for (int i = 0; i < size; i++) lookups[i] = keys[i];
+        shuffle(lookups, random);
+      }
+      return new Workload<>(keys, lookups);
+    }
+
+    // the same words as ByteKeys
+    if (dist.endsWith(":bytes")) {
+      Workload<?> words = makeWorkload(dist.substring(0, dist.length() - ":bytes".length()), size);
+      ByteKey[] keys = Arrays.stream(words.keys).map(word -> ByteKey.of((String) word)).toArray(ByteKey[]::new);
+      ByteKey[] lookups = Arrays.stream(words.lookups).map(word -> ByteKey.of((String) word)).toArray(ByteKey[]::new);
+      return new Workload<>(keys, lookups);
+    }
+
+    // otherwise the distribution names a text file - use its words in reading order
+    List<String> tokens = readTokens(dist);
+    LinkedHashSet<String> distinct = new LinkedHashSet<>(tokens);
+    String[] keys = distinct.stream().limit(size).toArray(String[]::new);
+    // look words up in the order they appear in the text, so common words dominate
+    String[] lookups = new String[keys.length];
+    HashSet<String> chosen = new HashSet<>(Arrays.asList(keys));
+    int filled = 0;
+    while (filled < lookups.length) {
+      for (String token : tokens) {
+        if (filled == lookups.length) break;
+        if (chosen.contains(token)) lookups[filled++] = token;
+      }
+    }
+    return new Workload<>(keys, lookups);
+  }
+
+  // measure one operation on one workload
+  private static <K extends Comparable<K>> Result run(Workload<K> workload, String op, int warmup, int iterations) {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long[] latencies = new long[LATENCY_SAMPLES * iterations];
+    int latencyCount = 0;
+    long totalOps = 0;
+    long totalNanos = 0;
+    long totalBytes = 0;
+
+    for (int i = 0; i < warmup + iterations; i++) {
+      boolean measured = i >= warmup;
+      RedBlackTree<K, Integer> tree = op.equals("put") ? new RedBlackTree<>() : build(workload.keys);
+
+      long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+      long start = System.nanoTime();
+      int count = runOnce(tree, workload, op);
+      long elapsed = System.nanoTime() - start;
+      long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+      if (measured) {
+        totalOps += count;
+        totalNanos += elapsed;
+        totalBytes += bytes;
+        latencyCount = sampleLatencies(workload, op, latencies, latencyCount);
+      }
+    }
+
+    Result result = new Result();
+    result.opsPerSecond = totalOps * 1e9 / totalNanos;
+    result.bytesPerOp = (double) totalBytes / totalOps;
+    Arrays.sort(latencies, 0, latencyCount);
+    result.p99Nanos = latencyCount == 0 ? 0 : latencies[(int) (latencyCount * 0.99)];
+    return result;
+  }
+
+  // one pass of the operation over the whole workload, returning the number of ops done
+  private static <K extends Comparable<K>> int runOnce(RedBlackTree<K, Integer> tree, Workload<K> workload, String op) {
+    K[] keys = workload.keys;
+    K[] lookups = workload.lookups;
+    int n = keys.length;
+    long result = 0;
+
+    switch (op) {
+      case "put":
+        for (int i = 0; i < n; i++) tree.put(keys[i], i);
+        result = tree.size();
+        break;
+      case "get":
+        for (int i = 0; i < n; i++) result += tree.get(lookups[i]);
+        break;
+      case "containsKey":
+        for (int i = 0; i < n; i++) if (tree.containsKey(lookups[i])) result++;
+        break;
+      case "delete":
+        // delete in lookup order, skipping repeats that are already gone
+        for (int i = 0; i < n; i++) {
+          Integer value = tree.delete(lookups[i]);
+          if (value != null) result += value;
+        }
+        break;
+      case "select":
+        for (int i = 0; i < n; i++) result += tree.select((int) ((i * 0x9E3779B1L) % n)).hashCode();
+        break;
+      case "findRank":
+        for (int i = 0; i < n; i++) result += tree.findRank(lookups[i]);
+        break;
+      case "findPredecessor":
+        for (int i = 0; i < n; i++) result += Objects.hashCode(tree.findPredecessor(lookups[i]));
+        break;
+      case "findSuccessor":
+        for (int i = 0; i < n; i++) result += Objects.hashCode(tree.findSuccessor(lookups[i]));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown operation \"" +op+ "\".");
+    }
+    sink += result;
+    return n;
+  }
+
+  // time single operations to get a latency distribution
+  private static <K extends Comparable<K>> int sampleLatencies(Workload<K> workload, String op, long[] latencies, int count) {
+    K[] keys = workload.keys;
+    K[] lookups = workload.lookups;
+    int n = keys.length;
+    int samples = Math.min(LATENCY_SAMPLES, n);
+    int stride = Math.max(1, n / samples);
+
+    // put is timed against a tree that already holds everything but the sampled keys
+    RedBlackTree<K, Integer> tree;
+    if (op.equals("put")) {
+      tree = new RedBlackTree<>();
+      for (int i = 0; i < n; i++) if (i % stride != 0) tree.put(keys[i], i);
+    }
+    else tree = build(keys);
+
+    for (int i = 0; i < n && samples > 0; i += stride, samples--) {
+      K key = op.equals("put") ? keys[i] : lookups[i];
+      long start = System.nanoTime();
+      switch (op) {
+        case "put": tree.put(key, i); break;
+        case "get": sink += Objects.hashCode(tree.get(key)); break;
+        case "containsKey": if (tree.containsKey(key)) sink++; break;
+        case "delete": sink += Objects.hashCode(tree.delete(key)); break;
+        case "select": sink += tree.select(i).hashCode(); break;
+        case "findRank": sink += tree.findRank(key); break;
+        case "findPredecessor": sink += Objects.hashCode(tree.findPredecessor(key)); break;
+        case "findSuccessor": sink += Objects.hashCode(tree.findSuccessor(key)); break;
+        default: throw new IllegalArgumentException("Unknown operation \"" +op+ "\".");
+      }
+      latencies[count++] = System.nanoTime() - start;
+    }
+    return count;
+  }
+
+  private static <K extends Comparable<K>> RedBlackTree<K, Integer> build(K[] keys) {
+    RedBlackTree<K, Integer> tree = new RedBlackTree<>();
+    for (int i = 0; i < keys.length; i++) tree.put(keys[i], i);
+    return tree;
+  }
+
+  // cumulative probabilities for ranks 0..n-1 under a Zipf distribution
+  private static double[] zipfTable(int n) {
+    double[] cumulative = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+      cumulative[i] = sum;
+    }
+    for (int i = 0; i < n; i++) cumulative[i] /= sum;
+    return cumulative;
+  }
+
+  private static int zipfSample(double[] cumulative, Random random) {
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    if (index < 0) index = -index - 1;
+    return Math.min(index, cumulative.length - 1);
+  }
+
+  private static <T> void shuffle(T[] array, Random random) {
+    for (int i = array.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      T temp = array[i];
+      array[i] = array[j];
+      array[j] = temp;
+    }
+  }
+
+  // same tokenizing rules as WordFreqs2.makeRedBlackTree (but always UTF-8, whatever the platform default)
+  private static List<String> readTokens(String filename) throws IOException {
+    List<String> tokens = new ArrayList<>();
+    Scanner scanner = new Scanner(new File(filename), "UTF-8");
+    scanner.useDelimiter("[^A-Za-z0-9'_]+");
+    while (scanner.hasNext()) {
+      String token = scanner.next().toLowerCase();
+      if (token.startsWith("'")) token = token.replaceAll("^'+", "");
+      if (token.endsWith("'")) token = token.replaceAll("'+$", "");
+      if (token.length() > 0) tokens.add(token);
+    }
+    scanner.close();
+    return tokens;
+  }
+}
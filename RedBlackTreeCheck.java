@@ -0,0 +1,89 @@
+/**
+ * Randomized regression check for RedBlackTree's delete. It runs random
+ * mixes of put, delete, pollFirst and pollLast against a java.util.TreeMap
+ * and, after every step, compares what delete returned, the size, and every
+ * key and value in order, and checks the tree is still balanced (no path is
+ * more than twice the black height).
+ *
+ * It guards the delete fixes that came with the benchmark harness:
+ * deleteMinNode borrowing redness from the wrong side (which corrupted the
+ * tree), delete making the root red when a child was already red, and
+ * delete returning the successor's value instead of the removed one.
+ *
+ * Usage:
+ *   javac *.java
+ *   java RedBlackTreeCheck [rounds] [seed]
+ *
+ * Prints "OK" and exits 0, or prints the first mismatch and exits 1.
+ */
+
+import java.util.*;
+
+public class RedBlackTreeCheck {
+  private static final int OPS_PER_ROUND = 2_000;
+
+  public static void main(String[] args) {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+    Random random = new Random(seed);
+
+    for (int round = 0; round < rounds; round++) {
+      RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+      TreeMap<Integer, Integer> expected = new TreeMap<>();
+      // small key ranges make deletes hit often, big ones grow deep trees
+      int keyRange = round % 2 == 0 ? 64 : 4_096;
+
+      for (int op = 0; op < OPS_PER_ROUND; op++) {
+        int key = random.nextInt(keyRange);
+        String step;
+        switch (random.nextInt(6)) {
+          case 0: case 1: case 2: {
+            int value = random.nextInt();
+            tree.put(key, value);
+            expected.put(key, value);
+            step = "put " + key;
+            break;
+          }
+          case 3: case 4: {
+            Integer removed = tree.delete(key);
+            Integer expectedRemoved = expected.remove(key);
+            step = "delete " + key;
+            if (!Objects.equals(removed, expectedRemoved)) fail(round, op, step, "returned " + removed + ", expected " + expectedRemoved);
+            break;
+          }
+          default: {
+            boolean first = random.nextBoolean();
+            Map.Entry<Integer, Integer> removed = first ? tree.pollFirst() : tree.pollLast();
+            Map.Entry<Integer, Integer> expectedRemoved = first ? expected.pollFirstEntry() : expected.pollLastEntry();
+            step = first ? "pollFirst" : "pollLast";
+            if (!Objects.equals(removed, expectedRemoved)) fail(round, op, step, "returned " + removed + ", expected " + expectedRemoved);
+          }
+        }
+        check(tree, expected, round, op, step);
+      }
+    }
+    System.out.println("OK");
+  }
+
+  // compares the whole tree with the map, and checks its balance
+  private static void check(RedBlackTree<Integer, Integer> tree, TreeMap<Integer, Integer> expected, int round, int op, String step) {
+    if (tree.size() != expected.size()) fail(round, op, step, "size " + tree.size() + ", expected " + expected.size());
+
+    Iterator<Map.Entry<Integer, Integer>> expectedEntries = expected.entrySet().iterator();
+    for (Map.Entry<Integer, Integer> entry : tree) {
+      Map.Entry<Integer, Integer> expectedEntry = expectedEntries.next();
+      if (!entry.getKey().equals(expectedEntry.getKey()) || !entry.getValue().equals(expectedEntry.getValue())) {
+        fail(round, op, step, "found " + entry + ", expected " + expectedEntry);
+      }
+    }
+
+    if (tree.calcHeight() > 2 * tree.calcBlackHeight()) {
+      fail(round, op, step, "height " + tree.calcHeight() + " with black height " + tree.calcBlackHeight());
+    }
+  }
+
+  private static void fail(int round, int op, String step, String problem) {
+    System.out.println("Round " + round + ", op " + op + " (" + step + "): " + problem);
+    System.exit(1);
+  }
+}
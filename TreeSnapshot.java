@@ -0,0 +1,280 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a tree with String keys and number values to a compact binary file,
+ * and loads it back. The file is a 24-byte header followed by the entries
+ * in key order:
+ *
+ *   header: magic "RBTS", version, number of entries, CRC-32 of the body,
+ *           length of the body (ints and a long, big-endian)
+ *   entry:  varint bytes shared with the previous key's UTF-8,
+ *           varint length of the rest, the rest of the UTF-8 bytes,
+ *           zigzag varint value
+ *
+ * Sorted keys share long prefixes, so front coding keeps a word list at
+ * a few bytes per word. Loading streams the body through a FileChannel,
+ * checks the count, order and checksum, then builds the tree in linear time
+ * with RedBlackTree.fromSorted instead of n puts.
+ */
+public final class TreeSnapshot {
+
+  private static final int MAGIC = 0x52425453; // "RBTS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private TreeSnapshot() {}
+
+  /**
+   * Writes the tree to a file. It walks the live tree, so nothing may
+   * change the tree for the whole write: if another thread does, the write
+   * fails with a ConcurrentModificationException and no file is left. To
+   * save a tree that other threads keep writing, use a
+   * ConcurrentRedBlackTree or a PersistentRedBlackTree.
+   *
+   * @param tree
+   * @param path
+   * @param valueToLong turns each value into the number that's saved
+   * @throws IOException if the file can't be written
+   */
+  public static <V> void write(RedBlackTree<String, V> tree, Path path, ToLongFunction<? super V> valueToLong) throws IOException {
+    write(tree, tree.size(), path, valueToLong);
+  }
+
+  /**
+   * Writes the tree as it is now to a file. The entries are copied under
+   * the read lock in O(n) and encoded after it's released, so writers only
+   * wait for the copy, and readers don't wait at all.
+   *
+   * @param tree
+   * @param path
+   * @param valueToLong turns each value into the number that's saved
+   * @throws IOException if the file can't be written
+   */
+  public static <V> void write(ConcurrentRedBlackTree<String, V> tree, Path path, ToLongFunction<? super V> valueToLong) throws IOException {
+    List<Map.Entry<String, V>> entries = tree.entries();
+    write(entries, entries.size(), path, valueToLong);
+  }
+
+  /**
+   * Writes the tree as it is now to a file. It writes from an O(1)
+   * snapshot, so the tree can keep changing, and its readers keep reading,
+   * for as long as the write takes.
+   *
+   * @param tree
+   * @param path
+   * @param valueToLong turns each value into the number that's saved
+   * @throws IOException if the file can't be written
+   */
+  public static <V> void write(PersistentRedBlackTree<String, V> tree, Path path, ToLongFunction<? super V> valueToLong) throws IOException {
+    PersistentRedBlackTree<String, V> snapshot = tree.snapshot();
+    write(snapshot, snapshot.size(), path, valueToLong);
+  }
+
+  /**
+   * Writes size entries with strictly increasing keys to a file. It's
+   * written to a temporary file next to path first and then moved over it,
+   * so a crash never leaves half a snapshot behind. If the write fails, the
+   * temporary file is deleted.
+   *
+   * @param entries the entries, in key order
+   * @param size the number of entries
+   * @param path
+   * @param valueToLong turns each value into the number that's saved
+   * @throws IOException if the file can't be written
+   */
+  public static <V> void write(Iterable<? extends Map.Entry<String, ? extends V>> entries, int size, Path path,
+      ToLongFunction<? super V> valueToLong) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        Output output = new Output(channel);
+        byte[] previous = new byte[0];
+        int count = 0;
+        for(Map.Entry<String, ? extends V> entry : entries) {
+          byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+          int shared = Arrays.mismatch(previous, key);
+          if(shared < 0) shared = key.length; // the same bytes - which sorted keys never are, but it still round trips
+
+          output.writeVarLong(shared);
+          output.writeVarLong(key.length - shared);
+          output.writeBytes(key, shared, key.length - shared);
+          long value = valueToLong.applyAsLong(entry.getValue());
+          output.writeVarLong((value << 1) ^ (value >> 63)); // zigzag, so small negatives stay small
+          previous = key;
+          count++;
+        }
+        if(count != size) throw new ConcurrentModificationException("Expected " + size + " entries but got " + count + "!");
+        output.flush();
+
+        // now that the body's written, fill in the header
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt((int) output.crc.getValue()).putLong(output.length).flip();
+        while(header.hasRemaining()) channel.write(header, header.position());
+        channel.force(true);
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(IOException | RuntimeException e) {
+      Files.deleteIfExists(temporary); // don't leave half a snapshot lying around
+      throw e;
+    }
+  }
+
+  /**
+   * Loads a tree written by write
+   *
+   * @param path
+   * @param longToValue turns each saved number back into a value
+   * @return the tree
+   * @throws IOException if the file can't be read, or isn't a whole, intact snapshot
+   */
+  public static <V> RedBlackTree<String, V> read(Path path, LongFunction<? extends V> longToValue) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while(header.hasRemaining()) {
+        if(channel.read(header) < 0) throw new EOFException("The snapshot's header is cut short!");
+      }
+      header.flip();
+      if(header.getInt() != MAGIC) throw new IOException("That isn't a tree snapshot!");
+      int version = header.getInt();
+      if(version != VERSION) throw new IOException("Unknown snapshot version " + version + "!");
+      int size = header.getInt();
+      int checksum = header.getInt();
+      long length = header.getLong();
+      if(size < 0 || length < 0) throw new IOException("The snapshot's header is corrupt!");
+      // check the header against the file before sizing arrays by it - every entry takes at least 3 bytes
+      if(length > channel.size() - HEADER_SIZE) throw new EOFException("The snapshot is cut short!");
+      if(size > length / 3) throw new IOException("The snapshot's header is corrupt!");
+
+      Input input = new Input(channel, length);
+      String[] keys = new String[size];
+      @SuppressWarnings("unchecked")
+      V[] values = (V[]) new Object[size];
+      byte[] key = new byte[64]; // the current key's UTF-8, which starts with part of the previous one's
+      int keyLength = 0;
+      for(int i = 0; i < size; i++) {
+        long shared = input.readVarLong();
+        long rest = input.readVarLong();
+        if(shared > keyLength || rest > Integer.MAX_VALUE - shared) throw new IOException("The snapshot is corrupt!");
+        keyLength = (int) (shared + rest);
+        if(keyLength > key.length) key = Arrays.copyOf(key, Math.max(keyLength, key.length * 2));
+        input.readBytes(key, (int) shared, (int) rest);
+
+        keys[i] = new String(key, 0, keyLength, StandardCharsets.UTF_8);
+        if(i > 0 && keys[i].compareTo(keys[i - 1]) <= 0) throw new IOException("The snapshot's keys are out of order!");
+        long value = input.readVarLong();
+        values[i] = longToValue.apply((value >>> 1) ^ -(value & 1));
+      }
+      if(input.remaining != 0 || input.buffer.hasRemaining()) throw new IOException("The snapshot has extra bytes!");
+      if((int) input.crc.getValue() != checksum) throw new IOException("The snapshot's checksum doesn't match!");
+      return RedBlackTree.fromSorted(keys, values);
+    }
+  }
+
+  /**
+   * Buffers bytes on their way to the channel, keeping their CRC and count
+   * as it goes. The body starts right after the header.
+   */
+  private static class Output {
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long length;
+
+    private Output(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      if(buffer.remaining() < 10) flush();
+      while((value & ~0x7FL) != 0) {
+        buffer.put((byte) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      buffer.put((byte) value);
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int count) throws IOException {
+      if(buffer.remaining() < count) {
+        flush();
+        if(buffer.capacity() < count) buffer = ByteBuffer.allocate(count);
+      }
+      buffer.put(bytes, offset, count);
+    }
+
+    private void flush() throws IOException {
+      crc.update(buffer.array(), 0, buffer.position());
+      buffer.flip();
+      while(buffer.hasRemaining()) {
+        length += channel.write(buffer, HEADER_SIZE + length);
+      }
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Reads the body through a buffer, refilling it from the channel as it
+   * runs dry and keeping the CRC of everything read.
+   */
+  private static class Input {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long remaining; // body bytes not yet in the buffer
+
+    private Input(FileChannel channel, long length) {
+      this.channel = channel;
+      this.remaining = length;
+      buffer.limit(0);
+    }
+
+    private void fill() throws IOException {
+      if(remaining == 0) throw new EOFException("The snapshot is cut short!");
+      buffer.clear();
+      if(remaining < buffer.capacity()) buffer.limit((int) remaining);
+      int read = channel.read(buffer);
+      if(read < 0) throw new EOFException("The snapshot is cut short!");
+      crc.update(buffer.array(), 0, read);
+      remaining -= read;
+      buffer.flip();
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for(int shift = 0; shift < 64; shift += 7) {
+        if(!buffer.hasRemaining()) fill();
+        byte b = buffer.get();
+        value |= (long) (b & 0x7F) << shift;
+        if(b >= 0) return value;
+      }
+      throw new IOException("The snapshot is corrupt!");
+    }
+
+    private void readBytes(byte[] bytes, int offset, int count) throws IOException {
+      while(count > 0) {
+        if(!buffer.hasRemaining()) fill();
+        int chunk = Math.min(count, buffer.remaining());
+        buffer.get(bytes, offset, chunk);
+        offset += chunk;
+        count -= chunk;
+      }
+    }
+  }
+}
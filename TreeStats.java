@@ -0,0 +1,89 @@
+/**
+ * A snapshot of a tree's shape: its size, height, black height, average
+ * node depth and number of red nodes. Small trees are measured exactly.
+ * Big trees are sampled: the figures come from about a thousand random
+ * nodes, each found by rank in O(log n), so taking a snapshot costs the
+ * same however big the tree gets. Size and black height are always exact.
+ */
+public final class TreeStats {
+
+  private final int size;
+  private final int height;
+  private final int blackHeight;
+  private final double averageDepth;
+  private final long redNodes;
+  private final boolean exact;
+
+  TreeStats(int size, int height, int blackHeight, double averageDepth, long redNodes, boolean exact) {
+    this.size = size;
+    this.height = height;
+    this.blackHeight = blackHeight;
+    this.averageDepth = averageDepth;
+    this.redNodes = redNodes;
+    this.exact = exact;
+  }
+
+  /**
+   * Returns the number of nodes
+   *
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the height, where an empty tree has height 0. When sampled,
+   * it's the deepest sampled node's, so it can come in a little low.
+   *
+   * @return
+   */
+  public int height() {
+    return height;
+  }
+
+  /**
+   * Returns the number of black nodes on every path from the root down
+   *
+   * @return
+   */
+  public int blackHeight() {
+    return blackHeight;
+  }
+
+  /**
+   * Returns the average distance of the nodes from the root, or NaN for an
+   * empty tree
+   *
+   * @return
+   */
+  public double averageDepth() {
+    return averageDepth;
+  }
+
+  /**
+   * Returns the number of red nodes
+   *
+   * @return
+   */
+  public long redNodes() {
+    return redNodes;
+  }
+
+  /**
+   * Returns true if every node was measured, false if the height, average
+   * depth and red nodes are estimates
+   *
+   * @return
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  @Override
+  public String toString() {
+    String approximately = exact ? "" : "~";
+    return String.format("size=%d height=%s%d blackHeight=%d averageDepth=%s%.3f redNodes=%s%d",
+        size, approximately, height, blackHeight, approximately, averageDepth, approximately, redNodes);
+  }
+}
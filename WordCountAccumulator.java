@@ -0,0 +1,167 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * Counts words from many threads at once, in front of a RedBlackTree. An
+ * add never touches the tree or takes a lock: it bumps the word's LongAdder
+ * in a ConcurrentHashMap, which finds existing words without locking, and a
+ * LongAdder spreads a hot word's increments over per-thread cells, so even
+ * every thread counting "the" doesn't contend.
+ *
+ * drain moves the pending counts into the tree as one batch. It takes each
+ * adder's count and zeroes it, sorts the words, builds them into a tree in
+ * linear time with RedBlackTree.fromSorted, and unions that into the main
+ * tree. Only the union holds the write lock, and it costs O(m log(n/m + 1))
+ * for m changed words. Call drain on demand or schedule it with drainEvery:
+ * the tree is then never more than one drain behind, and count is always
+ * exact.
+ *
+ * A word's adder stays in the map after it's drained (removing it could lose
+ * an add racing with the removal), so the map holds one adder per distinct
+ * word ever seen.
+ */
+public class WordCountAccumulator {
+
+  private final ConcurrentHashMap<String, LongAdder> pending = new ConcurrentHashMap<>();
+  private final RedBlackTree<String, Long> tree = new RedBlackTree<>();
+  private final StampedLock lock = new StampedLock(); // guards tree
+  private final StampedLock drainLock = new StampedLock(); // held by a drain, so count can tell one ran
+
+  /**
+   * Counts one occurrence of a word
+   *
+   * @param word
+   */
+  public void add(String word) {
+    adder(word).increment();
+  }
+
+  /**
+   * Counts occurrences of a word
+   *
+   * @param word
+   * @param count
+   */
+  public void add(String word, long count) {
+    adder(word).add(count);
+  }
+
+  private LongAdder adder(String word) {
+    LongAdder adder = pending.get(word); // the common case - no locking at all
+    if(adder == null) adder = pending.computeIfAbsent(word, key -> new LongAdder());
+    return adder;
+  }
+
+  /**
+   * Returns the word's exact count so far: what's in the tree plus what
+   * hasn't been drained yet. It's O(log n). A drain moves counts from one
+   * to the other, so if one ran meanwhile it counts again, waiting for the
+   * drain to finish.
+   *
+   * @param word
+   * @return
+   */
+  public long count(String word) {
+    long stamp = drainLock.tryOptimisticRead();
+    if(stamp != 0) {
+      long count = countNow(word);
+      if(drainLock.validate(stamp)) return count;
+    }
+    stamp = drainLock.readLock();
+    try {
+      return countNow(word);
+    }
+    finally {
+      drainLock.unlockRead(stamp);
+    }
+  }
+
+  private long countNow(String word) {
+    LongAdder adder = pending.get(word);
+    long undrained = adder == null ? 0 : adder.sum();
+    Long drained = read(tree -> tree.get(word));
+    return undrained + (drained == null ? 0 : drained);
+  }
+
+  /**
+   * Moves every pending count into the tree. Adds keep going while it runs;
+   * the ones that miss this drain are kept for the next.
+   *
+   * @return the number of words whose counts changed
+   */
+  public int drain() {
+    long drainStamp = drainLock.writeLock();
+    try {
+      // take the deltas - sumThenReset zeroes each cell atomically, so no add is lost
+      List<Map.Entry<String, Long>> changed = new ArrayList<>();
+      for(Map.Entry<String, LongAdder> entry : pending.entrySet()) {
+        long delta = entry.getValue().sumThenReset();
+        if(delta != 0) changed.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), delta));
+      }
+      if(changed.isEmpty()) return 0;
+
+      // sort them by word and build them into a tree, all outside the lock
+      changed.sort(Map.Entry.comparingByKey());
+      String[] words = new String[changed.size()];
+      Long[] counts = new Long[changed.size()];
+      for(int i = 0; i < words.length; i++) {
+        words[i] = changed.get(i).getKey();
+        counts[i] = changed.get(i).getValue();
+      }
+      RedBlackTree<String, Long> batch = RedBlackTree.fromSorted(words, counts);
+
+      long stamp = lock.writeLock();
+      try {
+        tree.union(batch, Long::sum);
+      }
+      finally {
+        lock.unlockWrite(stamp);
+      }
+      return words.length;
+    }
+    finally {
+      drainLock.unlockWrite(drainStamp);
+    }
+  }
+
+  /**
+   * Drains every period on the given executor, until the returned future
+   * is cancelled
+   *
+   * @param executor
+   * @param period
+   * @param unit
+   * @return
+   */
+  public ScheduledFuture<?> drainEvery(ScheduledExecutorService executor, long period, TimeUnit unit) {
+    return executor.scheduleAtFixedRate(this::drain, period, period, unit);
+  }
+
+  /**
+   * Runs a query on the tree of drained counts under its read lock, so it
+   * sees the tree between two drains. Queries don't block each other or
+   * any adds, only a drain's union. The tree mustn't be changed or kept
+   * past the query.
+   *
+   * @param query
+   * @return what the query returned
+   */
+  public <T> T read(Function<? super RedBlackTree<String, Long>, ? extends T> query) {
+    long stamp = lock.readLock();
+    try {
+      return query.apply(tree);
+    }
+    finally {
+      lock.unlockRead(stamp);
+    }
+  }
+}
@@ -13,8 +13,12 @@
 
 import java.io.*;
 import java.util.*;
+import java.nio.file.Path;
 
 public class WordFreqs2 {
+	// what snapshots saved by !save end with
+	private static final String SNAPSHOT_EXTENSION = ".rbts";
+
 	public static void main(String[] args) {
 		// make sure we have a file
 		if (args.length == 0) {
@@ -33,35 +37,14 @@ public class WordFreqs2 {
 		}
 	}
 
-	// load a file & make a RedBlackTree from its words
+	// load a file & make a RedBlackTree from its words, or load a snapshot saved with !save
 	private static RedBlackTree<String, Integer> makeRedBlackTree(String filename) throws IOException {
-		RedBlackTree<String, Integer> tree = new RedBlackTree<>();
-		
-		// set up Scanner that tokenizes based on non-(letters, numbers, underscore, apostrophe)
-		Scanner scanner = new Scanner(new File(filename));
-		scanner.useDelimiter("[^A-Za-z0-9'_]+");
-
-		// read, token by token
-		while (scanner.hasNext()) {
-			String token = scanner.next().toLowerCase();
-
-			// remove leading/trailing apostrophes
-			if (token.startsWith("'")) token = token.replaceAll("^'+", "");
-			if (token.endsWith("'")) token = token.replaceAll("'+$", "");
-
-			// skip if it was just apostrophes
-			if (token.length() == 0) continue;
-
-			// add to table
-			if (tree.containsKey(token)) {
-				int freq = tree.get(token) + 1;
-				tree.put(token, freq);
-			}
-			else tree.put(token, 1);
-		}
-
-		// close out & return
-		scanner.close();
+		RedBlackTree<String, Integer> tree;
+		if (filename.endsWith(SNAPSHOT_EXTENSION)) tree = TreeSnapshot.read(Path.of(filename), count -> (int) count);
+		// split the file between the cores, count each piece, and merge the counts
+		else tree = ParallelWordCounter.count(filename);
+		// also order the words by count, for the top-k and histogram commands
+		tree.indexValues(Comparator.naturalOrder());
 		return tree;
 	}
 
@@ -86,15 +69,47 @@ public class WordFreqs2 {
 
 				// print stats on the backing table
 				else if (query.equals("!stats")) {
-					int numRedNodes = tree.countRedNodes();
+					TreeStats stats = tree.stats();
+					String approximately = stats.isExact() ? "" : "~"; // big trees are sampled
 					System.out.println("Tree table statistics:");
-					System.out.println("\tSize (n): " +tree.size());
-					System.out.println("\tHeight: " +tree.calcHeight() + " (" +tree.calcBlackHeight()+ " black)");
-					System.out.printf("\tAvg node depth: %1.3f\n", tree.calcAverageDepth());
-					System.out.printf("\t# red nodes: %d (%1.1f%%)\n", numRedNodes, 100.0*numRedNodes/tree.size());
+					System.out.println("\tSize (n): " +stats.size());
+					System.out.println("\tHeight: " +approximately +stats.height() + " (" +stats.blackHeight()+ " black)");
+					System.out.printf("\tAvg node depth: %s%1.3f\n", approximately, stats.averageDepth());
+					System.out.printf("\t# red nodes: %s%d (%1.1f%%)\n", approximately, stats.redNodes(), 100.0*stats.redNodes()/stats.size());
 					System.out.println("\tRoot key: \"" + tree.getRootKey() +"\"");
 				}
 
+				// most frequent words
+				else if (query.equals("!top") || query.startsWith("!top ")) {
+					int k = query.length() == 4 ? 10 : parseInt(query.substring(5).trim());
+					if (k < 0) System.out.println("How many words? Try \"!top 10\".");
+					else {
+						for (Map.Entry<String, Integer> entry : tree.topByValue(k)) {
+							System.out.println("\t" +entry.getValue()+ "\t" +entry.getKey());
+						}
+					}
+				}
+
+				// how many words appear how many times
+				else if (query.equals("!histogram")) {
+					for (Map.Entry<Integer, Integer> entry : tree.valueHistogram()) {
+						System.out.println("\t" +entry.getValue()+ " word(s) appear " +entry.getKey()+ "×");
+					}
+				}
+
+				// save the counts, to load them without counting next time
+				else if (query.startsWith("!save ")) {
+					String filename = query.substring(6).trim();
+					if (!filename.endsWith(SNAPSHOT_EXTENSION)) filename += SNAPSHOT_EXTENSION;
+					try {
+						TreeSnapshot.write(tree, Path.of(filename), Integer::longValue);
+						System.out.println("Saved " +tree.size()+ " words to \"" +filename+ "\".");
+					}
+					catch (IOException e) {
+						System.out.println("Couldn't save to \"" +filename+ "\": " +e.getMessage());
+					}
+				}
+
 				// help menu
 				else if (query.equals("!help")) printHelpMenu();
 
@@ -107,6 +122,17 @@ public class WordFreqs2 {
 			// size or select
 			else if (query.startsWith("#")) {
 				if (query.length() == 1) System.out.println("The text contains " +tree.size()+ " unique words.");
+				// a page of words, by rank
+				else if (query.indexOf('-', 2) > 0) {
+					int dash = query.indexOf('-', 2);
+					int from = parseInt(query.substring(1, dash));
+					int to = parseInt(query.substring(dash + 1));
+					if (from < 0 || to < from || to >= tree.size()) System.out.println("Try a range of numbers from 0-" +(tree.size()-1) +".");
+					else {
+						int[] rank = {from};
+						tree.selectRange(from, to + 1).forEach(entry -> System.out.println("Word #" +(rank[0]++)+ " is \"" +entry.getKey()+ "\"."));
+					}
+				}
 				else {
 					int rank = parseInt(query.substring(1));
 					String word = tree.select(rank);
@@ -123,6 +149,21 @@ public class WordFreqs2 {
 				else System.out.println("\""+ word+ "\" is word #" +rank+ ".");
 			}
 
+			// rank by frequency
+			else if (query.startsWith("^")) {
+				String word = query.substring(1);
+				int rank = tree.valueRank(word);
+				if (rank == -1) System.out.println("\""+ word+ "\" is not in the text.");
+				else System.out.println(rank+ " words appear more often than \"" +word+ "\".");
+			}
+
+			// number of words with a frequency
+			else if (query.startsWith("%")) {
+				int freq = parseInt(query.substring(1));
+				if (freq < 1) System.out.println("Try a frequency of 1 or more.");
+				else System.out.println(tree.countWithValue(freq)+ " words appear exactly " +freq+ "×.");
+			}
+
 			// predecessor / first
 			else if (query.startsWith("<")) {
 				if (query.length() == 1) System.out.println("The first word (alphabetically) is \"" +tree.findFirstKey() +"\".");
@@ -163,14 +204,9 @@ public class WordFreqs2 {
 			else if (query.startsWith("+")) {
 				String newWord = query.substring(1);
 				if (newWord.length() == 0) System.out.println("What word do you want to add? Please try again.");
-				else if (tree.containsKey(newWord)) {
-					int freq = tree.get(newWord) + 1;
-					tree.put(newWord, freq);
-					System.out.println("\"" +newWord+ "\" now appears " +freq+ "×.");
-				}
 				else {
-					tree.put(newWord, 1);
-					System.out.println("\"" +newWord+ "\" now appears 1×.");
+					int freq = tree.merge(newWord, 1, Integer::sum);
+					System.out.println("\"" +newWord+ "\" now appears " +freq+ "×.");
 				}
 			}
 
@@ -197,9 +233,15 @@ public class WordFreqs2 {
 		System.out.println("\t>word\t\tfinds the successor of word");
 		System.out.println("\t#\t\tprints the tree size");
 		System.out.println("\t#number\t\tprints the word with rank number");
+		System.out.println("\t#from-to\tprints the words with ranks from to to");
 		System.out.println("\t&word\t\tprints the rank of word");
+		System.out.println("\t^word\t\tprints how many words are more frequent than word");
+		System.out.println("\t%number\t\tprints how many words appear number times");
+		System.out.println("\t!top number\tprints the number most frequent words");
+		System.out.println("\t!histogram\tprints how many words appear each number of times");
 		System.out.println("\t!help\t\tprints this help menu");
 		System.out.println("\t!stats\t\tprints in-depth stats on the table");
+		System.out.println("\t!save file\tsaves the counts to file" +SNAPSHOT_EXTENSION+ ", which can be loaded instead of the text");
 		System.out.println("\t!exit\t\texits the program");
 	}
 
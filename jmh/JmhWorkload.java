@@ -0,0 +1,54 @@
+import bench.TreeWorkload;
+
+/**
+ * The default package's side of the JMH benchmarks: a RedBlackTree holding
+ * one of RedBlackTreeBenchmark's workloads (see bench.TreeWorkload for why
+ * this is split off). The benchmarks load it by name with create.
+ */
+public final class JmhWorkload<K extends Comparable<K>> implements TreeWorkload {
+
+  private final K[] keys; // insertion order
+  private final K[] lookups; // query order
+  private final RedBlackTree<K, Integer> tree = new RedBlackTree<>();
+
+  private JmhWorkload(RedBlackTreeBenchmark.Workload<K> workload) {
+    this.keys = workload.keys;
+    this.lookups = workload.lookups;
+    for(int i = 0; i < keys.length; i++) tree.put(keys[i], i);
+  }
+
+  /**
+   * Builds a tree of every key in the distribution, the same workloads
+   * RedBlackTreeBenchmark uses. Text distributions are capped at their
+   * vocabulary.
+   *
+   * @param distribution sequential, random, zipf, or a text file (with
+   *     ":bytes" for ByteKeys)
+   * @param size
+   * @return
+   * @throws java.io.IOException if a text file can't be read
+   */
+  public static TreeWorkload create(String distribution, int size) throws java.io.IOException {
+    return new JmhWorkload<>(RedBlackTreeBenchmark.makeWorkload(distribution, size));
+  }
+
+  public int size() {return keys.length;}
+
+  public void put(int i) {tree.put(keys[i], i);}
+
+  public Object delete(int i) {return tree.delete(keys[i]);}
+
+  public boolean contains(int i) {return tree.containsKey(keys[i]);}
+
+  public Object get(int i) {return tree.get(lookups[i]);}
+
+  public boolean containsKey(int i) {return tree.containsKey(lookups[i]);}
+
+  public Object select(int rank) {return tree.select(rank);}
+
+  public int findRank(int i) {return tree.findRank(lookups[i]);}
+
+  public Object findPredecessor(int i) {return tree.findPredecessor(lookups[i]);}
+
+  public Object findSuccessor(int i) {return tree.findSuccessor(lookups[i]);}
+}
@@ -0,0 +1,147 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for RedBlackTree's put, get, containsKey, delete, select,
+ * findRank, findPredecessor and findSuccessor, over tree sizes and key
+ * distributions. Every size and distribution runs in its own forked JVM, so
+ * one key type's compareTo never shares a call site with another's. Each
+ * call is one operation: the sample mode gives the latency percentiles
+ * (p99 among them), and the GC profiler the bytes allocated per op.
+ *
+ * Usage, from the project root (the text distributions read alice.txt and
+ * frankenstein.txt from the working directory):
+ *   mvn -Pjmh package
+ *   java -jar target/benchmarks.jar RedBlackTreeJmh -prof gc
+ *   java -jar target/benchmarks.jar RedBlackTreeJmh.get -p size=1000000 -p distribution=zipf
+ *
+ * Text distributions are capped at their vocabulary (under 10K words), so
+ * their bigger sizes repeat the same tree. Add ":bytes" to one
+ * (-p distribution=alice.txt:bytes) to key the tree by ByteKey.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx8g")
+public class RedBlackTreeJmh {
+
+  /**
+   * A full tree of one size and distribution, and where the next lookup
+   * comes from. Built once per fork; the lookups don't change it.
+   */
+  @State(Scope.Thread)
+  public static class Tree {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"sequential", "random", "zipf", "alice.txt", "frankenstein.txt"})
+    public String distribution;
+
+    TreeWorkload workload;
+    int[] ranks; // a scrambled order of every rank, for select
+    private int next;
+
+    @Setup(Level.Trial)
+    public void build() throws ReflectiveOperationException {
+      // JmhWorkload is in the default package, which this one can't name
+      workload = (TreeWorkload) Class.forName("JmhWorkload").getMethod("create", String.class, int.class)
+          .invoke(null, distribution, size);
+      int n = workload.size();
+      ranks = new int[n];
+      for(int i = 0; i < n; i++) ranks[i] = (int) ((i * 0x9E3779B1L) % n);
+    }
+
+    // the index of the next key to use, cycling through them all
+    int next() {
+      int i = next;
+      if(++next == ranks.length) next = 0;
+      return i;
+    }
+  }
+
+  /**
+   * Makes sure the next put inserts: the key is deleted first, outside the
+   * timed call. Per-invocation setup adds a timestamp pair to each call, so
+   * put and delete only run in sample mode, which times each call anyway.
+   */
+  @State(Scope.Thread)
+  public static class Absent {
+    int index;
+
+    @Setup(Level.Invocation)
+    public void removeNext(Tree tree) {
+      index = tree.next();
+      tree.workload.delete(index);
+    }
+  }
+
+  /** Makes sure the next delete removes something, like Absent does for put */
+  @State(Scope.Thread)
+  public static class Present {
+    int index;
+
+    @Setup(Level.Invocation)
+    public void addNext(Tree tree) {
+      index = tree.next();
+      tree.workload.put(index);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  public void put(Tree tree, Absent absent) {
+    tree.workload.put(absent.index);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  public void delete(Tree tree, Present present, Blackhole blackhole) {
+    blackhole.consume(tree.workload.delete(present.index));
+  }
+
+  @Benchmark
+  public void get(Tree tree, Blackhole blackhole) {
+    blackhole.consume(tree.workload.get(tree.next()));
+  }
+
+  @Benchmark
+  public void containsKey(Tree tree, Blackhole blackhole) {
+    blackhole.consume(tree.workload.containsKey(tree.next()));
+  }
+
+  @Benchmark
+  public void select(Tree tree, Blackhole blackhole) {
+    blackhole.consume(tree.workload.select(tree.ranks[tree.next()]));
+  }
+
+  @Benchmark
+  public void findRank(Tree tree, Blackhole blackhole) {
+    blackhole.consume(tree.workload.findRank(tree.next()));
+  }
+
+  @Benchmark
+  public void findPredecessor(Tree tree, Blackhole blackhole) {
+    blackhole.consume(tree.workload.findPredecessor(tree.next()));
+  }
+
+  @Benchmark
+  public void findSuccessor(Tree tree, Blackhole blackhole) {
+    blackhole.consume(tree.workload.findSuccessor(tree.next()));
+  }
+}
@@ -0,0 +1,38 @@
+package bench;
+
+/**
+ * One tree and its keys, as the JMH benchmarks see them. JMH won't run
+ * benchmarks from the default package, and a named package can't refer to
+ * the default package's classes, so RedBlackTreeJmh works through this
+ * interface and JmhWorkload (in the default package) implements it. Only
+ * that one class ever implements it, so the JIT inlines every call.
+ *
+ * Keys are chosen by index: put and delete take the i-th key in insertion
+ * order, the lookups the i-th key in query order.
+ */
+public interface TreeWorkload {
+
+  /** Returns the number of keys */
+  int size();
+
+  /** Puts the i-th key (in insertion order) with value i */
+  void put(int i);
+
+  /** Deletes the i-th key (in insertion order), returning its value */
+  Object delete(int i);
+
+  /** Returns true if the i-th key (in insertion order) is in the tree */
+  boolean contains(int i);
+
+  Object get(int i);
+
+  boolean containsKey(int i);
+
+  Object select(int rank);
+
+  int findRank(int i);
+
+  Object findPredecessor(int i);
+
+  Object findSuccessor(int i);
+}